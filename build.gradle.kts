@@ -43,6 +43,8 @@ dependencies {
     compileOnly(libs.bossshoppro)
     compileOnly(libs.gemseconomy)
     compileOnly(libs.essentials)
+    testImplementation(libs.paper)
+    testImplementation(libs.junit)
 }
 
 configurations.implementation {
@@ -75,6 +77,9 @@ tasks {
     build {
         dependsOn(shadowJar)
     }
+    test {
+        useJUnitPlatform()
+    }
     withType<JavaCompile> {
         options.compilerArgs.addAll(listOf("-Xlint:unchecked", "-Xlint:deprecation"))
         options.encoding = "UTF-8"
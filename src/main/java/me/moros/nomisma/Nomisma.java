@@ -21,6 +21,9 @@ package me.moros.nomisma;
 
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 import me.moros.nomisma.command.CommandManager;
 import me.moros.nomisma.config.ConfigManager;
@@ -32,6 +35,8 @@ import me.moros.nomisma.locale.TranslationManager;
 import me.moros.nomisma.model.Currency;
 import me.moros.nomisma.model.Leaderboard;
 import me.moros.nomisma.registry.Registries;
+import me.moros.nomisma.storage.AsyncEconomyStorage;
+import me.moros.nomisma.storage.BalanceJournal;
 import me.moros.nomisma.storage.CurrencyLoader;
 import me.moros.nomisma.storage.EconomyStorage;
 import me.moros.nomisma.storage.StorageFactory;
@@ -56,7 +61,8 @@ public class Nomisma extends JavaPlugin {
   private TranslationManager translationManager;
 
   private CurrencyLoader loader;
-  private EconomyStorage storage;
+  private AsyncEconomyStorage storage;
+  private BalanceJournal journal;
 
   private VaultLayer vaultLayer;
   private Leaderboard leaderboard;
@@ -73,6 +79,8 @@ public class Nomisma extends JavaPlugin {
     Path dir = plugin.getDataFolder().toPath();
     configManager = new ConfigManager(logger, dir);
     translationManager = new TranslationManager(logger, dir);
+    EconomyStorage blocking = Objects.requireNonNull(StorageFactory.createInstance(this), "Unable to connect to database!");
+    storage = StorageFactory.createAsync(this, blocking);
     loader = CurrencyLoader.createInstance(this, dir);
     if (loader == null) {
       logger.error("Could not create Currencies folder! Aborting plugin load.");
@@ -84,11 +92,22 @@ public class Nomisma extends JavaPlugin {
       long delta = System.currentTimeMillis() - startTime;
       int size = Registries.CURRENCIES.size();
       logger.info("Successfully loaded " + size + (size == 1 ? " currency" : " currencies") + " (" + delta + "ms)");
-    });
-    storage = Objects.requireNonNull(StorageFactory.createInstance(this), "Unable to connect to database!");
-    Registries.CURRENCIES.forEach(storage::createColumn);
-
-    Registries.USERS.init(this, storage);
+    }).join(); // Currencies must be registered before recovering journaled balances
+    blocking.createColumns(Registries.CURRENCIES.stream().toList());
+
+    journal = BalanceJournal.createInstance(this);
+    if (journal != null) {
+      int recovered = journal.replay(blocking);
+      if (recovered < 0) {
+        // Loading profiles now would serve balances that are missing the journaled changes
+        logger.error("Unable to recover journaled balances, the journal is kept for next startup. Aborting plugin load.");
+        setEnabled(false);
+        return;
+      } else if (recovered > 0) {
+        logger.info("Recovered unsaved balances for " + recovered + " profile(s) from the journal.");
+      }
+    }
+    Registries.USERS.init(this, storage, journal);
     leaderboard = new Leaderboard(this, storage);
     handleHooks();
     try {
@@ -108,6 +127,9 @@ public class Nomisma extends JavaPlugin {
       Bukkit.getServicesManager().unregister(Economy.class, vaultLayer);
     }
     Registries.USERS.saveAll();
+    if (journal != null) {
+      journal.close();
+    }
     configManager.close();
     executor.shutdown();
     storage.close();
@@ -171,4 +193,20 @@ public class Nomisma extends JavaPlugin {
   public CompositeExecutor executor() {
     return executor;
   }
+
+  /**
+   * @return the executor for blocking file access, database work must use {@link #submitStorageTask(Supplier)}
+   */
+  public Executor ioExecutor() {
+    return storage.executor();
+  }
+
+  /**
+   * Run a blocking task that uses the database, sharing the storage permits with all other storage calls.
+   * @param task the task to run
+   * @return a future with the result of the task
+   */
+  public <T> CompletableFuture<T> submitStorageTask(Supplier<T> task) {
+    return storage.submit(task);
+  }
 }
@@ -57,7 +57,7 @@ public final class CommandManager extends PaperCommandManager<CommandSender> {
   private final CommandConfirmationManager<CommandSender> confirmationManager;
 
   public CommandManager(Nomisma plugin) throws Exception {
-    super(plugin, AsynchronousCommandExecutionCoordinator.<CommandSender>builder().withSynchronousParsing().build(), Function.identity(), Function.identity());
+    super(plugin, AsynchronousCommandExecutionCoordinator.<CommandSender>builder().build(), Function.identity(), Function.identity());
     this.plugin = plugin;
     String prefix = plugin.configManager().config().geyserUsernamePrefix();
     INVALID_NAMES = Pattern.compile("[^" + prefix + "_A-Za-z0-9]");
@@ -34,6 +34,7 @@ import me.moros.nomisma.model.BalanceHolder;
 import me.moros.nomisma.model.Currency;
 import me.moros.nomisma.model.Leaderboard;
 import me.moros.nomisma.model.Leaderboard.LeaderboardEntry;
+import me.moros.nomisma.model.TransferEngine;
 import me.moros.nomisma.model.User;
 import me.moros.nomisma.registry.Registries;
 import me.moros.nomisma.util.CurrencyUtil;
@@ -97,21 +98,18 @@ public final class DynamicCurrencyCommand {
 
   private void onPay(CommandSender commandSender, User target, BigDecimal amount) {
     User sender = Registries.USERS.onlineUser((Player) commandSender);
-    if (!sender.uuid().equals(target.uuid())) {
-      if (!sender.has(currency, amount)) {
-        Message.INSUFFICIENT_FUNDS.send(commandSender, currency.plural());
-        return;
-      }
-      Component value = CurrencyUtil.format(currency, amount);
-      BigDecimal newBalanceSender = sender.subtract(currency, amount);
-      BigDecimal newBalanceReceiver = target.add(currency, amount);
-      Message.PAID_SENDER.send(commandSender, value, target.name());
-      Player onlineTarget = Bukkit.getPlayer(target.uuid());
-      if (onlineTarget != null) {
-        Message.PAID_RECEIVER.send(onlineTarget, value, commandSender.getName());
+    switch (TransferEngine.transfer(sender, target, currency, amount)) {
+      case SUCCESS -> {
+        Component value = CurrencyUtil.format(currency, amount);
+        Message.PAID_SENDER.send(commandSender, value, target.name());
+        Player onlineTarget = Bukkit.getPlayer(target.uuid());
+        if (onlineTarget != null) {
+          Message.PAID_RECEIVER.send(onlineTarget, value, commandSender.getName());
+        }
       }
-    } else {
-      Message.TARGET_SELF.send(commandSender);
+      case INVALID_AMOUNT -> Message.INVALID_AMOUNT.send(commandSender);
+      case SAME_ACCOUNT -> Message.TARGET_SELF.send(commandSender);
+      case INSUFFICIENT_FUNDS -> Message.INSUFFICIENT_FUNDS.send(commandSender, currency.plural());
     }
   }
 
@@ -20,17 +20,20 @@
 package me.moros.nomisma.command;
 
 import java.util.Collection;
+import java.util.Locale;
 
 import cloud.commandframework.arguments.standard.EnumArgument;
 import cloud.commandframework.arguments.standard.StringArgument;
 import cloud.commandframework.arguments.standard.StringArgument.StringMode;
 import cloud.commandframework.extra.confirmation.CommandConfirmationManager;
 import cloud.commandframework.meta.CommandMeta;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import me.moros.nomisma.locale.Message;
 import me.moros.nomisma.migration.BalanceImporter;
 import me.moros.nomisma.migration.MigrationType;
 import me.moros.nomisma.migration.MigrationUtility;
 import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.registry.LatencyStatsCounter;
 import me.moros.nomisma.registry.Registries;
 import me.moros.nomisma.util.CurrencyUtil;
 import net.kyori.adventure.text.Component;
@@ -86,6 +89,10 @@ public final class NomismaCommand {
         .meta(CommandConfirmationManager.META_CONFIRMATION_REQUIRED, true)
         .permission(CommandPermissions.IMPORT)
         .handler(c -> onImport(c.getSender()))
+      ).command(builder.literal("cache")
+        .meta(CommandMeta.DESCRIPTION, "View profile cache statistics")
+        .permission(CommandPermissions.CACHE)
+        .handler(c -> onCache(c.getSender()))
       );
   }
 
@@ -114,6 +121,26 @@ public final class NomismaCommand {
     currencies.forEach(user::sendMessage);
   }
 
+  private void onCache(CommandSender user) {
+    LatencyStatsCounter counter = Registries.USERS.cacheStats();
+    if (counter == null) {
+      Message.CACHE_STATS_DISABLED.send(user);
+      return;
+    }
+    CacheStats stats = counter.snapshot();
+    double[] latency = counter.loadPercentiles(0.5, 0.95, 0.99);
+    Message.CACHE_HEADER.send(user);
+    Message.CACHE_SIZE.send(user, Registries.USERS.cacheSize(), Registries.USERS.cacheWeight());
+    Message.CACHE_HIT_RATE.send(user, String.format(Locale.ROOT, "%.1f%%", stats.hitRate() * 100), stats.requestCount());
+    Message.CACHE_LOADS.send(user, stats.loadSuccessCount(), stats.loadFailureCount());
+    Message.CACHE_LOAD_LATENCY.send(user, formatMillis(latency[0]), formatMillis(latency[1]), formatMillis(latency[2]));
+    Message.CACHE_EVICTIONS.send(user, stats.evictionCount(), stats.evictionWeight());
+  }
+
+  private static String formatMillis(double value) {
+    return String.format(Locale.ROOT, "%.2f", value);
+  }
+
   private void onMigrate(CommandSender user, MigrationType type, Currency currency) {
     manager.getOwningPlugin().executor().sync().submit(() -> {
       if (Bukkit.getPluginManager().isPluginEnabled(type.plugin())) {
@@ -45,7 +45,7 @@ public class BSPointsHook extends BSPointsPlugin {
   @Override
   public double getPoints(OfflinePlayer player) {
     User user = Registries.USERS.userSync(player.getUniqueId());
-    return user == null ? 0 : CurrencyUtil.doubleValue(user.balance(currency));
+    return user == null ? 0 : user.balanceDouble(currency);
   }
 
   @Override
@@ -65,8 +65,8 @@ public class BSPointsHook extends BSPointsPlugin {
     if (user == null) {
       return 0;
     } else {
-      BigDecimal result = user.subtract(currency, BigDecimal.valueOf(points));
-      return CurrencyUtil.doubleValue(result);
+      // Never clamp to zero, a failed withdrawal leaves the balance untouched
+      return CurrencyUtil.doubleValue(user.tryWithdraw(currency, BigDecimal.valueOf(points)).balance());
     }
   }
 
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.List;
 
 import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.model.BalanceHolder.WithdrawResult;
 import me.moros.nomisma.model.Currency;
 import me.moros.nomisma.model.User;
 import me.moros.nomisma.registry.Registries;
@@ -105,13 +106,13 @@ public class VaultLayer implements Economy {
   @Override
   public double getBalance(String playerName) {
     User user = Registries.USERS.userSync(playerName);
-    return user == null ? 0 : doubleValue(user.balance(primary));
+    return user == null ? 0 : user.balanceDouble(primary);
   }
 
   @Override
   public double getBalance(OfflinePlayer player) {
     User user = Registries.USERS.userSync(player.getUniqueId());
-    return user == null ? 0 : doubleValue(user.balance(primary));
+    return user == null ? 0 : user.balanceDouble(primary);
   }
 
   @Deprecated
@@ -129,13 +130,13 @@ public class VaultLayer implements Economy {
   @Override
   public boolean has(String playerName, double amount) {
     User user = Registries.USERS.userSync(playerName);
-    return user != null && user.has(primary, BigDecimal.valueOf(amount));
+    return user != null && has(user, amount);
   }
 
   @Override
   public boolean has(OfflinePlayer player, double amount) {
     User user = Registries.USERS.userSync(player.getUniqueId());
-    return user != null && user.has(primary, BigDecimal.valueOf(amount));
+    return user != null && has(user, amount);
   }
 
   @Deprecated
@@ -162,13 +163,7 @@ public class VaultLayer implements Economy {
     if (user == null) {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "User does not exist!");
     }
-    BigDecimal balance = user.balance(primary);
-    BigDecimal bdAmount = BigDecimal.valueOf(amount);
-    if (balance.compareTo(bdAmount) < 0) {
-      return new EconomyResponse(0, doubleValue(balance), ResponseType.FAILURE, "Loan was not permitted!");
-    }
-    BigDecimal result = user.subtract(primary, bdAmount);
-    return new EconomyResponse(amount, doubleValue(result), ResponseType.SUCCESS, null);
+    return withdraw(user, amount);
   }
 
   @Override
@@ -183,13 +178,7 @@ public class VaultLayer implements Economy {
     if (user == null) {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "User does not exist!");
     }
-    BigDecimal balance = user.balance(primary);
-    BigDecimal bdAmount = BigDecimal.valueOf(amount);
-    if (balance.compareTo(bdAmount) < 0) {
-      return new EconomyResponse(0, doubleValue(balance), ResponseType.FAILURE, "Loan was not permitted!");
-    }
-    BigDecimal result = user.subtract(primary, bdAmount);
-    return new EconomyResponse(amount, doubleValue(result), ResponseType.SUCCESS, null);
+    return withdraw(user, amount);
   }
 
   @Deprecated
@@ -210,19 +199,13 @@ public class VaultLayer implements Economy {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "Player name cannot be null!");
     }
     if (amount < 0) {
-      return new EconomyResponse(0, 0, ResponseType.FAILURE, "Cannot withdraw negative funds!");
+      return new EconomyResponse(0, 0, ResponseType.FAILURE, "Cannot deposit negative funds!");
     }
     User user = Registries.USERS.userSync(playerName);
     if (user == null) {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "User does not exist!");
     }
-    BigDecimal balance = user.balance(primary);
-    BigDecimal bdAmount = BigDecimal.valueOf(amount);
-    if (balance.compareTo(bdAmount) < 0) {
-      return new EconomyResponse(0, doubleValue(balance), ResponseType.FAILURE, "Loan was not permitted!");
-    }
-    BigDecimal result = user.add(primary, bdAmount);
-    return new EconomyResponse(amount, doubleValue(result), ResponseType.SUCCESS, null);
+    return deposit(user, amount);
   }
 
   @Override
@@ -231,19 +214,13 @@ public class VaultLayer implements Economy {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "Player name cannot be null!");
     }
     if (amount < 0) {
-      return new EconomyResponse(0, 0, ResponseType.FAILURE, "Cannot withdraw negative funds!");
+      return new EconomyResponse(0, 0, ResponseType.FAILURE, "Cannot deposit negative funds!");
     }
     User user = Registries.USERS.userSync(player.getUniqueId());
     if (user == null) {
       return new EconomyResponse(0, 0, ResponseType.FAILURE, "User does not exist!");
     }
-    BigDecimal balance = user.balance(primary);
-    BigDecimal bdAmount = BigDecimal.valueOf(amount);
-    if (balance.compareTo(bdAmount) < 0) {
-      return new EconomyResponse(0, doubleValue(balance), ResponseType.FAILURE, "Loan was not permitted!");
-    }
-    BigDecimal result = user.subtract(primary, bdAmount);
-    return new EconomyResponse(amount, doubleValue(result), ResponseType.SUCCESS, null);
+    return deposit(user, amount);
   }
 
   @Deprecated
@@ -279,6 +256,36 @@ public class VaultLayer implements Economy {
     return createPlayerAccount(player);
   }
 
+  private boolean has(User user, double amount) {
+    long units = CurrencyUtil.units(amount, primary.scale());
+    return units == CurrencyUtil.NOT_EXACT ? user.has(primary, BigDecimal.valueOf(amount)) : user.hasUnits(primary, units);
+  }
+
+  private EconomyResponse withdraw(User user, double amount) {
+    long units = CurrencyUtil.units(amount, primary.scale());
+    if (units != CurrencyUtil.NOT_EXACT) {
+      if (!user.tryWithdrawUnits(primary, units)) {
+        return new EconomyResponse(0, user.balanceDouble(primary), ResponseType.FAILURE, "Loan was not permitted!");
+      }
+      return new EconomyResponse(amount, user.balanceDouble(primary), ResponseType.SUCCESS, null);
+    }
+    WithdrawResult result = user.tryWithdraw(primary, BigDecimal.valueOf(amount));
+    if (!result.success()) {
+      return new EconomyResponse(0, doubleValue(result.balance()), ResponseType.FAILURE, "Loan was not permitted!");
+    }
+    return new EconomyResponse(amount, doubleValue(result.balance()), ResponseType.SUCCESS, null);
+  }
+
+  private EconomyResponse deposit(User user, double amount) {
+    long units = CurrencyUtil.units(amount, primary.scale());
+    if (units != CurrencyUtil.NOT_EXACT) {
+      user.addUnits(primary, units);
+      return new EconomyResponse(amount, user.balanceDouble(primary), ResponseType.SUCCESS, null);
+    }
+    BigDecimal result = user.add(primary, BigDecimal.valueOf(amount));
+    return new EconomyResponse(amount, doubleValue(result), ResponseType.SUCCESS, null);
+  }
+
   private static final EconomyResponse noBank = new EconomyResponse(0, 0, ResponseType.NOT_IMPLEMENTED, "Bank is closed!");
 
   @Deprecated
@@ -24,8 +24,12 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
+import me.moros.nomisma.locale.Message;
+import me.moros.nomisma.locale.TranslationManager;
 import me.moros.nomisma.model.User;
 import me.moros.nomisma.registry.Registries;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.translation.GlobalTranslator;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -55,17 +59,27 @@ public final class PlayerListener implements Listener {
       }
     } catch (TimeoutException e) {
       logger.warn("Timed out while retrieving data for " + uuid);
+      disallow(event);
     } catch (CancellationException | ExecutionException | InterruptedException e) {
       logger.warn(e.getMessage(), e);
+      disallow(event);
     }
   }
 
+  // Joining without a loaded profile would require a blocking load on the main thread
+  private void disallow(AsyncPlayerPreLoginEvent event) {
+    Component message = GlobalTranslator.render(Message.LOGIN_FAILED.build(), TranslationManager.DEFAULT_LOCALE);
+    event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, message);
+  }
+
   @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
   public void onPlayerJoin(PlayerJoinEvent event) {
     Player player = event.getPlayer();
-    UUID uuid = player.getUniqueId();
-    String name = player.getName();
-    User profile = Registries.USERS.forceLoad(uuid, name);
+    User profile = Registries.USERS.loadedUser(player.getUniqueId());
+    if (profile == null) {
+      player.kick(GlobalTranslator.render(Message.LOGIN_FAILED.build(), player.locale()));
+      return;
+    }
     Registries.USERS.register(profile);
   }
 
@@ -44,6 +44,7 @@ public interface Message {
   Args0 CURRENCIES_HEADER = () -> translatable("nomisma.command.list.header", DARK_AQUA);
 
   Args0 TARGET_SELF = () -> translatable("nomisma.command.pay.target-self", RED);
+  Args0 INVALID_AMOUNT = () -> translatable("nomisma.command.pay.invalid-amount", RED);
   Args1<Component> INSUFFICIENT_FUNDS = currency -> translatable("nomisma.command.pay.insufficient-funds", YELLOW)
     .args(currency);
 
@@ -80,6 +81,21 @@ public interface Message {
   Args0 IMPORT_SUCCESS = () -> translatable("nomisma.command.import.success", GREEN);
   Args0 IMPORT_ERROR = () -> translatable("nomisma.command.import.error", RED);
 
+  Args0 LOGIN_FAILED = () -> translatable("nomisma.login.failed", RED);
+
+  Args0 CACHE_HEADER = () -> translatable("nomisma.command.cache.header", DARK_AQUA);
+  Args0 CACHE_STATS_DISABLED = () -> translatable("nomisma.command.cache.disabled", YELLOW);
+  Args2<Long, Long> CACHE_SIZE = (size, weight) -> translatable("nomisma.command.cache.size", GRAY)
+    .args(text(size, GREEN), text(weight, GREEN));
+  Args2<String, Long> CACHE_HIT_RATE = (rate, requests) -> translatable("nomisma.command.cache.hit-rate", GRAY)
+    .args(text(rate, GREEN), text(requests, GREEN));
+  Args2<Long, Long> CACHE_LOADS = (success, failure) -> translatable("nomisma.command.cache.loads", GRAY)
+    .args(text(success, GREEN), text(failure, RED));
+  Args3<String, String, String> CACHE_LOAD_LATENCY = (p50, p95, p99) -> translatable("nomisma.command.cache.latency", GRAY)
+    .args(text(p50, GREEN), text(p95, GREEN), text(p99, GREEN));
+  Args2<Long, Long> CACHE_EVICTIONS = (count, weight) -> translatable("nomisma.command.cache.evictions", GRAY)
+    .args(text(count, GREEN), text(weight, GREEN));
+
   Args2<String, String> VERSION_COMMAND_HOVER = (author, link) -> translatable("nomisma.command.version.hover", DARK_AQUA)
     .args(text(author, GREEN), text(link, GREEN));
 
@@ -122,4 +138,16 @@ public interface Message {
       audience.sendMessage(build(arg0, arg1));
     }
   }
+
+  interface Args3<A0, A1, A2> {
+    Component build(A0 arg0, A1 arg1, A2 arg2);
+
+    default void send(Audience audience, A0 arg0, A1 arg1, A2 arg2) {
+      if (audience instanceof ConsoleCommandSender) {
+        audience.sendMessage(GlobalTranslator.render(build(arg0, arg1, arg2), TranslationManager.DEFAULT_LOCALE));
+        return;
+      }
+      audience.sendMessage(build(arg0, arg1, arg2));
+    }
+  }
 }
@@ -44,7 +44,7 @@ public class BalanceImporter {
   }
 
   public CompletableFuture<Boolean> importData() {
-    return parent.executor().async().submit(this::importBalances);
+    return parent.submitStorageTask(this::importBalances);
   }
 
   private boolean importBalances() {
@@ -65,7 +65,12 @@ public class BalanceImporter {
     if (userMap.isEmpty()) {
       return false;
     }
-    userMap.values().stream().map(u -> new User(u.uuid, u.name, u.balance)).forEach(Registries.USERS::addPending);
+    for (TempUser tempUser : userMap.values()) {
+      if (tempUser.name != null) {
+        User user = Registries.USERS.userWithoutCache(tempUser.uuid, tempUser.name);
+        tempUser.balance.forEach(user::set);
+      }
+    }
     return true;
   }
 
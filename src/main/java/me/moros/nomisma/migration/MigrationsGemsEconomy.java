@@ -44,7 +44,7 @@ public class MigrationsGemsEconomy implements MigrationUtility {
 
   @Override
   public CompletableFuture<Boolean> apply(Currency currency) {
-    return parent.executor().async().submit(() -> migrate(currency));
+    return parent.submitStorageTask(() -> migrate(currency));
   }
 
   private boolean migrate(Currency currency) {
@@ -31,9 +31,52 @@ public interface BalanceHolder {
 
   BigDecimal subtract(Currency currency, BigDecimal amount);
 
+  /**
+   * Atomically subtract an amount only if the current balance covers it.
+   * @param currency the currency to withdraw
+   * @param amount the amount to withdraw
+   * @return the result of the withdrawal, holding the resulting balance either way
+   */
+  WithdrawResult tryWithdraw(Currency currency, BigDecimal amount);
+
   Map<Currency, BigDecimal> balanceSnapshot();
 
+  /**
+   * @param currency the currency to query
+   * @return the balance in minor units, see {@link Currency#scale()}
+   * @throws ArithmeticException if the balance cannot be represented exactly as a long
+   */
+  long balanceUnits(Currency currency);
+
+  /**
+   * @param currency the currency to query
+   * @return the largest double that does not exceed the balance
+   */
+  double balanceDouble(Currency currency);
+
+  /**
+   * Add an amount in minor units, see {@link Currency#scale()}.
+   * @param currency the currency to add to
+   * @param units the amount to add
+   */
+  void addUnits(Currency currency, long units);
+
+  /**
+   * Atomically subtract an amount in minor units only if the current balance covers it.
+   * @param currency the currency to withdraw
+   * @param units the non-negative amount to withdraw
+   * @return true if the amount was withdrawn, false otherwise
+   */
+  boolean tryWithdrawUnits(Currency currency, long units);
+
   default boolean has(Currency currency, BigDecimal amount) {
     return balance(currency).compareTo(amount) >= 0;
   }
+
+  default boolean hasUnits(Currency currency, long units) {
+    return has(currency, BigDecimal.valueOf(units, currency.scale()));
+  }
+
+  record WithdrawResult(boolean success, BigDecimal balance) {
+  }
 }
@@ -44,6 +44,18 @@ public sealed interface Currency permits ValidatedCurrency {
 
   Collection<String> commandAliases();
 
+  /**
+   * @return the dense index assigned when the currency was registered, or -1 if it is not registered
+   */
+  int ordinal();
+
+  /**
+   * @return the amount of decimal digits balances are stored with
+   */
+  default int scale() {
+    return decimal() ? 2 : 0;
+  }
+
   default String permission() {
     return "nomisma.command." + identifier();
   }
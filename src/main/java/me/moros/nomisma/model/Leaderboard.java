@@ -28,7 +28,7 @@ import java.util.stream.Stream;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import me.moros.nomisma.Nomisma;
-import me.moros.nomisma.storage.EconomyStorage;
+import me.moros.nomisma.storage.AsyncEconomyStorage;
 
 public class Leaderboard {
   public static final int MAX_PAGE = 10;
@@ -36,9 +36,10 @@ public class Leaderboard {
 
   private final AsyncLoadingCache<Currency, LeaderboardResult> cache;
 
-  public Leaderboard(Nomisma plugin, EconomyStorage storage) {
+  public Leaderboard(Nomisma plugin, AsyncEconomyStorage storage) {
     long time = plugin.configManager().config().leaderboardCacheMinutes();
-    cache = Caffeine.newBuilder().expireAfterWrite(Duration.ofMinutes(time)).buildAsync(c -> storage.topBalances(c, 0, 100));
+    cache = Caffeine.newBuilder().expireAfterWrite(Duration.ofMinutes(time))
+      .buildAsync((c, executor) -> storage.topBalancesAsync(c, 0, 100));
   }
 
   public CompletableFuture<LeaderboardResult> getTop(Currency currency) {
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.model;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Unsaved changes of a {@link User}.
+ * @param user the user that changed
+ * @param name the new name or null if it hasn't changed
+ * @param balance the current balance of each changed currency
+ * @param delta the accumulated change of each changed currency since the last snapshot
+ */
+public record ProfileSnapshot(User user, @Nullable String name, Map<Currency, BigDecimal> balance,
+                              Map<Currency, BigDecimal> delta) {
+  public boolean isEmpty() {
+    return name == null && balance.isEmpty();
+  }
+}
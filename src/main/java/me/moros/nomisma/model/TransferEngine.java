@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.model;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+
+import me.moros.nomisma.registry.Registries;
+
+/**
+ * Applies transfers between two users atomically.
+ * The debit is a single check-and-withdraw on the sender, so concurrent transfers can never overdraw it.
+ * Debit and credit are applied while holding the shared change lock, so a flush either collects both sides
+ * of a transfer or neither, and saves them in the same transaction.
+ */
+public final class TransferEngine {
+  private TransferEngine() {
+  }
+
+  public enum Result {SUCCESS, INVALID_AMOUNT, SAME_ACCOUNT, INSUFFICIENT_FUNDS}
+
+  /**
+   * Transfer an amount of currency from one user to another.
+   * @param from the user to debit
+   * @param to the user to credit
+   * @param currency the currency to transfer
+   * @param amount the positive amount to transfer
+   * @return the result of the transfer, balances are only modified on success
+   */
+  public static Result transfer(User from, User to, Currency currency, BigDecimal amount) {
+    Objects.requireNonNull(currency);
+    Objects.requireNonNull(amount);
+    if (amount.signum() <= 0) {
+      return Result.INVALID_AMOUNT;
+    }
+    if (from.uuid().equals(to.uuid())) {
+      return Result.SAME_ACCOUNT;
+    }
+    Lock changeLock = Registries.USERS.changeLock();
+    changeLock.lock();
+    try {
+      if (!from.tryWithdraw(currency, amount).success()) {
+        return Result.INSUFFICIENT_FUNDS;
+      }
+      to.add(currency, amount);
+      return Result.SUCCESS;
+    } finally {
+      changeLock.unlock();
+    }
+  }
+}
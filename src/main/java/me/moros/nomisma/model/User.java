@@ -20,33 +20,64 @@
 package me.moros.nomisma.model;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
 
 import me.moros.nomisma.registry.Registries;
+import me.moros.nomisma.util.CurrencyUtil;
 import net.kyori.adventure.identity.Identity;
 import org.bukkit.OfflinePlayer;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+/**
+ * Balances are stored in arrays indexed by currency ordinal, unsaved changes are only allocated while the user is dirty.
+ * Values are kept as longs in minor units of the currency scale and only fall back to BigDecimal
+ * when they overflow or carry more decimal digits than the scale allows.
+ * A rounded down double of every balance is cached for callers like Vault that only deal in doubles.
+ * Reads are plain array loads, writes to the same user are serialized on the user instance.
+ */
 public class User implements Identity, BalanceHolder {
+  private static final int APPLIED = 0;
+  private static final int REJECTED = 1;
+  private static final int FALLBACK = 2;
+
   private final UUID uuid;
-  private final String name;
-  private final Map<Currency, BigDecimal> balance;
+  private final AtomicLongArray units;
+  private final AtomicReferenceArray<BigDecimal> exact; // Non-null when the balance does not fit in units
+  private final AtomicLongArray doubles; // Raw bits of each balance rounded down to a double
+  private long @Nullable [] delta; // Guarded by this, deltas in units followed by a bitset of changed currencies
+  private BigDecimal @Nullable [] deltaExact; // Guarded by this, deltas that do not fit in units
+  private volatile String name;
+  private volatile boolean nameChanged;
 
   public User(UUID uuid, String name) {
-    this(uuid, name, new ConcurrentHashMap<>());
+    this(uuid, name, Map.of());
   }
 
   public User(OfflinePlayer player) {
-    this(player.getUniqueId(), Objects.requireNonNull(player.getName()), new ConcurrentHashMap<>());
+    this(player.getUniqueId(), Objects.requireNonNull(player.getName()), Map.of());
   }
 
   public User(UUID uuid, String name, Map<Currency, BigDecimal> balance) {
     this.uuid = uuid;
     this.name = name;
-    this.balance = new ConcurrentHashMap<>();
-    this.balance.putAll(balance);
+    int size = Registries.CURRENCIES.size();
+    this.units = new AtomicLongArray(size);
+    this.exact = new AtomicReferenceArray<>(size);
+    this.doubles = new AtomicLongArray(size);
+    balance.forEach((c, bd) -> {
+      int index = c.ordinal();
+      if (index >= 0 && index < size) {
+        store(index, c.scale(), bd);
+      }
+    });
   }
 
   @Override
@@ -58,46 +89,357 @@ public class User implements Identity, BalanceHolder {
     return name;
   }
 
+  public void name(String name) {
+    Objects.requireNonNull(name);
+    if (!name.equals(this.name)) {
+      this.name = name;
+      nameChanged = true;
+      Registries.USERS.addPending(this);
+    }
+  }
+
   @Override
   public BigDecimal balance(Currency currency) {
-    Objects.requireNonNull(currency);
-    return balance.computeIfAbsent(currency, c -> BigDecimal.ZERO);
+    int index = currency.ordinal();
+    if (index < 0 || index >= units.length()) {
+      return BigDecimal.ZERO;
+    }
+    BigDecimal value = exact.get(index);
+    return value == null ? BigDecimal.valueOf(units.get(index), currency.scale()) : value;
+  }
+
+  @Override
+  public long balanceUnits(Currency currency) {
+    int index = currency.ordinal();
+    if (index < 0 || index >= units.length()) {
+      return 0;
+    }
+    BigDecimal value = exact.get(index);
+    return value == null ? units.get(index) : toUnits(value, currency.scale());
+  }
+
+  @Override
+  public double balanceDouble(Currency currency) {
+    int index = currency.ordinal();
+    if (index < 0 || index >= units.length()) {
+      return 0;
+    }
+    return Double.longBitsToDouble(doubles.get(index));
+  }
+
+  @Override
+  public boolean hasUnits(Currency currency, long amount) {
+    int index = currency.ordinal();
+    if (index >= 0 && index < units.length() && exact.get(index) == null) {
+      return units.get(index) >= amount;
+    }
+    return BalanceHolder.super.hasUnits(currency, amount);
   }
 
   @Override
   public BigDecimal set(Currency currency, BigDecimal amount) {
     Objects.requireNonNull(currency);
     Objects.requireNonNull(amount);
-    balance.put(currency, amount);
-    Registries.USERS.addPending(this);
-    return amount;
+    return update(currency, bd -> amount);
   }
 
   @Override
   public BigDecimal add(Currency currency, BigDecimal amount) {
     Objects.requireNonNull(currency);
     Objects.requireNonNull(amount);
-    BigDecimal result = balance.compute(currency, (c, bd) -> bd == null ? amount : bd.add(amount));
-    Registries.USERS.addPending(this);
-    return result;
+    return update(currency, bd -> bd.add(amount));
   }
 
   @Override
   public BigDecimal subtract(Currency currency, BigDecimal amount) {
     Objects.requireNonNull(currency);
     Objects.requireNonNull(amount);
-    BigDecimal bal = balance.computeIfAbsent(currency, c -> BigDecimal.ZERO);
-    if (bal.compareTo(amount) < 0) {
-      return set(currency, BigDecimal.ZERO);
+    return update(currency, bd -> bd.compareTo(amount) < 0 ? BigDecimal.ZERO : bd.subtract(amount));
+  }
+
+  @Override
+  public WithdrawResult tryWithdraw(Currency currency, BigDecimal amount) {
+    Objects.requireNonNull(currency);
+    Objects.requireNonNull(amount);
+    boolean[] applied = new boolean[1];
+    // Compare and subtract inside the same atomic update
+    BigDecimal result = update(currency, bd -> {
+      applied[0] = bd.compareTo(amount) >= 0;
+      return applied[0] ? bd.subtract(amount) : bd;
+    });
+    return new WithdrawResult(applied[0], result);
+  }
+
+  @Override
+  public void addUnits(Currency currency, long amount) {
+    Objects.requireNonNull(currency);
+    if (updateUnits(currency, amount, false) == FALLBACK) {
+      add(currency, BigDecimal.valueOf(amount, currency.scale()));
+    }
+  }
+
+  @Override
+  public boolean tryWithdrawUnits(Currency currency, long amount) {
+    Objects.requireNonNull(currency);
+    if (amount < 0) {
+      throw new IllegalArgumentException("Cannot withdraw a negative amount");
+    }
+    int result = updateUnits(currency, amount, true);
+    if (result == FALLBACK) {
+      return tryWithdraw(currency, BigDecimal.valueOf(amount, currency.scale())).success();
+    }
+    return result == APPLIED;
+  }
+
+  /**
+   * Allocation free update for balances that are held in minor units, apart from the delta array on the first change after a snapshot.
+   * @return {@link #FALLBACK} if the balance or result does not fit in a long and the caller must use the BigDecimal path
+   */
+  private int updateUnits(Currency currency, long amount, boolean withdraw) {
+    int index = index(currency);
+    long result;
+    Lock lock = Registries.USERS.changeLock();
+    lock.lock();
+    try {
+      synchronized (this) {
+        if (exact.get(index) != null) {
+          return FALLBACK;
+        }
+        long previous = units.get(index);
+        if (withdraw) {
+          if (previous < amount) {
+            return REJECTED;
+          }
+          result = previous - amount;
+        } else {
+          result = previous + amount;
+          if (((previous ^ result) & (amount ^ result)) < 0) {
+            return FALLBACK; // Overflow
+          }
+        }
+        if (amount == 0) {
+          return APPLIED;
+        }
+        if (!mergeDelta(index, withdraw ? -amount : amount)) {
+          return FALLBACK;
+        }
+        units.set(index, result);
+        cacheDouble(index, currency.scale());
+      }
+      Registries.USERS.addPending(this, currency, result, withdraw ? -amount : amount);
+      return APPLIED;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private BigDecimal update(Currency currency, UnaryOperator<BigDecimal> function) {
+    int index = index(currency);
+    int scale = currency.scale();
+    BigDecimal result;
+    BigDecimal delta;
+    Lock lock = Registries.USERS.changeLock();
+    lock.lock();
+    try {
+      synchronized (this) {
+        BigDecimal previous = balance(currency);
+        result = function.apply(previous);
+        delta = result.subtract(previous);
+        if (delta.signum() != 0) {
+          store(index, scale, result);
+          mergeDelta(index, scale, delta);
+        }
+      }
+      if (delta.signum() != 0) {
+        Registries.USERS.addPending(this, currency, result, delta);
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int index(Currency currency) {
+    int index = currency.ordinal();
+    if (index < 0 || index >= units.length()) {
+      throw new IllegalArgumentException("Unregistered currency " + currency.identifier());
+    }
+    return index;
+  }
+
+  private static long toUnits(BigDecimal value, int scale) {
+    return value.setScale(scale, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+  }
+
+  private void store(int index, int scale, BigDecimal value) {
+    try {
+      units.set(index, toUnits(value, scale));
+      exact.set(index, null);
+    } catch (ArithmeticException e) {
+      exact.set(index, value);
+    }
+    cacheDouble(index, scale);
+  }
+
+  /**
+   * Keep the double view of a balance in sync, must be called after every write to the balance.
+   */
+  private void cacheDouble(int index, int scale) {
+    BigDecimal value = exact.get(index);
+    double amount = value == null ? CurrencyUtil.doubleValue(units.get(index), scale) : CurrencyUtil.doubleValue(value);
+    doubles.set(index, Double.doubleToRawLongBits(amount));
+  }
+
+  private boolean changed(int index) {
+    return delta != null && (delta[units.length() + (index >>> 6)] & (1L << index)) != 0;
+  }
+
+  private long[] markChanged(int index) {
+    long[] values = delta;
+    if (values == null) {
+      int size = units.length();
+      values = new long[size + ((size + 63) >>> 6)];
+      delta = values;
+    }
+    values[units.length() + (index >>> 6)] |= 1L << index;
+    return values;
+  }
+
+  private BigDecimal delta(int index, int scale) {
+    BigDecimal value = deltaExact == null ? null : deltaExact[index];
+    return value == null ? BigDecimal.valueOf(delta == null ? 0 : delta[index], scale) : value;
+  }
+
+  private boolean mergeDelta(int index, long amount) {
+    if (deltaExact != null && deltaExact[index] != null) {
+      return false;
+    }
+    long current = delta == null ? 0 : delta[index];
+    long result = current + amount;
+    if (((current ^ result) & (amount ^ result)) < 0) {
+      return false;
+    }
+    markChanged(index)[index] = result;
+    return true;
+  }
+
+  private void mergeDelta(int index, int scale, BigDecimal amount) {
+    BigDecimal result = changed(index) ? delta(index, scale).add(amount) : amount;
+    long[] values = markChanged(index);
+    try {
+      values[index] = toUnits(result, scale);
+      if (deltaExact != null) {
+        deltaExact[index] = null;
+      }
+    } catch (ArithmeticException e) {
+      if (deltaExact == null) {
+        deltaExact = new BigDecimal[units.length()];
+      }
+      deltaExact[index] = result;
     }
-    BigDecimal result = bal.subtract(amount);
-    balance.put(currency, result);
-    Registries.USERS.addPending(this);
-    return result;
   }
 
   @Override
   public Map<Currency, BigDecimal> balanceSnapshot() {
-    return Map.copyOf(balance);
+    Map<Currency, BigDecimal> result = new HashMap<>();
+    for (int i = 0; i < units.length(); i++) {
+      Currency currency = Registries.CURRENCIES.currency(i);
+      if (currency != null) {
+        result.put(currency, balance(currency));
+      }
+    }
+    return Map.copyOf(result);
+  }
+
+  /**
+   * @return the amount of currencies this user holds a non-zero balance for
+   */
+  public int currencyCount() {
+    int count = 0;
+    for (int i = 0; i < units.length(); i++) {
+      if (units.get(i) != 0 || exact.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return true if this user has changes that have not been collected by a snapshot yet
+   */
+  public boolean isDirty() {
+    if (nameChanged) {
+      return true;
+    }
+    synchronized (this) {
+      return delta != null;
+    }
+  }
+
+  /**
+   * Collect all changes since the last snapshot and mark them as clean.
+   * @return a snapshot containing only changed data
+   */
+  public ProfileSnapshot snapshot() {
+    String changedName = null;
+    if (nameChanged) {
+      nameChanged = false;
+      changedName = name;
+    }
+    Map<Currency, BigDecimal> values = new HashMap<>();
+    Map<Currency, BigDecimal> deltas = new HashMap<>();
+    synchronized (this) {
+      // Drain each delta together with the value it produced
+      for (int i = 0; delta != null && i < units.length(); i++) {
+        Currency currency = Registries.CURRENCIES.currency(i);
+        if (changed(i) && currency != null) {
+          values.put(currency, balance(currency));
+          deltas.put(currency, delta(i, currency.scale()));
+        }
+      }
+      delta = null;
+      deltaExact = null;
+    }
+    return new ProfileSnapshot(this, changedName, values, deltas);
+  }
+
+  /**
+   * Mark the changes of a snapshot that failed to save as dirty again.
+   * @param snapshot the snapshot to restore
+   */
+  public void restore(ProfileSnapshot snapshot) {
+    if (snapshot.name() != null) {
+      nameChanged = true;
+    }
+    synchronized (this) {
+      snapshot.delta().forEach((currency, delta) -> mergeDelta(index(currency), currency.scale(), delta));
+    }
+    Registries.USERS.addPending(this);
+  }
+
+  /**
+   * Refresh this user in place with data that was loaded from storage.
+   * Changes that have not been saved yet are applied on top of the stored balances.
+   * @param stored the freshly loaded user
+   */
+  public void refresh(User stored) {
+    stored.balanceSnapshot().forEach(this::reconcile);
+    if (!nameChanged) {
+      name = stored.name;
+    }
+  }
+
+  /**
+   * Replace the balance of a currency with the value stored after a delta update.
+   * Changes made after the snapshot was taken are applied on top of the stored value.
+   * @param currency the currency to reconcile
+   * @param stored the stored balance
+   */
+  public void reconcile(Currency currency, BigDecimal stored) {
+    int index = index(currency);
+    int scale = currency.scale();
+    synchronized (this) {
+      store(index, scale, changed(index) ? stored.add(delta(index, scale)) : stored);
+    }
   }
 }
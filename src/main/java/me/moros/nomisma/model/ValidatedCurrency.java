@@ -48,6 +48,8 @@ public non-sealed class ValidatedCurrency implements Currency {
   private final String commandPrefix;
   private final Collection<String> commandAliases;
 
+  private volatile int ordinal = -1;
+
   private ValidatedCurrency(StringMeta meta, boolean decimal, boolean primary, CmdMeta cmdMeta) {
     identifier = meta.identifier();
     format = meta.formatRaw();
@@ -111,6 +113,22 @@ public non-sealed class ValidatedCurrency implements Currency {
     return Set.copyOf(commandAliases);
   }
 
+  @Override
+  public int ordinal() {
+    return ordinal;
+  }
+
+  /**
+   * Assign the registry ordinal of this currency, this can only happen once.
+   * @param ordinal the ordinal to assign
+   */
+  public void ordinal(int ordinal) {
+    if (this.ordinal >= 0) {
+      throw new IllegalStateException("Ordinal has already been assigned for " + identifier);
+    }
+    this.ordinal = ordinal;
+  }
+
   public static @Nullable Currency validatedCopy(@Nullable CurrencyData currency) {
     if (currency == null) {
       return null;
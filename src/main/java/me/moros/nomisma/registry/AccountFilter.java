@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.registry;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of known account uuids.
+ * A negative answer means the account definitely does not exist, a positive answer may be a false positive.
+ */
+final class AccountFilter {
+  private final AtomicLongArray bits;
+  private final int bitCount;
+  private final int hashes;
+
+  /**
+   * @param expected the expected amount of accounts
+   * @param fpp the desired false positive probability at the expected amount of accounts
+   */
+  AccountFilter(int expected, double fpp) {
+    int n = Math.max(1, expected);
+    long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    int words = (int) Math.min(Integer.MAX_VALUE / 64, Math.max(1, (m + 63) >>> 6));
+    bits = new AtomicLongArray(words);
+    bitCount = words * 64;
+    hashes = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  void put(UUID uuid) {
+    long h1 = mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+    long h2 = mix(h1 ^ uuid.getLeastSignificantBits());
+    for (int i = 0; i < hashes; i++) {
+      int bit = index(h1 + i * h2);
+      long mask = 1L << bit;
+      int word = bit >>> 6;
+      long current = bits.get(word);
+      while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+        current = bits.get(word);
+      }
+    }
+  }
+
+  boolean mightContain(UUID uuid) {
+    long h1 = mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+    long h2 = mix(h1 ^ uuid.getLeastSignificantBits());
+    for (int i = 0; i < hashes; i++) {
+      int bit = index(h1 + i * h2);
+      if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int index(long hash) {
+    return (int) ((hash & Long.MAX_VALUE) % bitCount);
+  }
+
+  // Stafford variant 13 of the murmur3 finalizer
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -27,15 +27,18 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.ValidatedCurrency;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class CurrencyRegistry implements Registry<Currency> {
   private final Map<String, Currency> currencies;
+  private Currency[] ordered;
   private Currency primary;
   private boolean locked = false;
 
   CurrencyRegistry() {
     currencies = new ConcurrentHashMap<>();
+    ordered = new Currency[0];
   }
 
   public int registerAndLock(Iterable<Currency> currencies) {
@@ -49,6 +52,12 @@ public class CurrencyRegistry implements Registry<Currency> {
       }
     }
     locked = true;
+    // Currencies are frozen from now on so they can be assigned dense ordinals
+    Currency[] array = this.currencies.values().toArray(Currency[]::new);
+    for (int i = 0; i < array.length; i++) {
+      ((ValidatedCurrency) array[i]).ordinal(i);
+    }
+    ordered = array;
     primary = stream().filter(Currency::primary).findFirst().orElse(null);
     return counter;
   }
@@ -69,6 +78,15 @@ public class CurrencyRegistry implements Registry<Currency> {
     return (id == null || id.isEmpty()) ? null : currencies.get(id.toLowerCase(Locale.ROOT));
   }
 
+  /**
+   * @param ordinal the ordinal of a registered currency
+   * @return the currency with the given ordinal or null if not found
+   */
+  public @Nullable Currency currency(int ordinal) {
+    Currency[] array = ordered;
+    return ordinal >= 0 && ordinal < array.length ? array[ordinal] : null;
+  }
+
   public @Nullable Currency primary() {
     return primary;
   }
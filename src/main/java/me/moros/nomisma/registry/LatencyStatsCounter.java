@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.registry;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+
+/**
+ * Cache stats counter that also keeps a window of the most recent load latencies for percentile reporting.
+ */
+public final class LatencyStatsCounter implements StatsCounter {
+  private static final int SAMPLES = 1024;
+
+  private final StatsCounter delegate;
+  private final AtomicLongArray latencies;
+  private final AtomicLong recorded;
+
+  LatencyStatsCounter() {
+    delegate = new ConcurrentStatsCounter();
+    latencies = new AtomicLongArray(SAMPLES);
+    recorded = new AtomicLong();
+  }
+
+  @Override
+  public void recordHits(int count) {
+    delegate.recordHits(count);
+  }
+
+  @Override
+  public void recordMisses(int count) {
+    delegate.recordMisses(count);
+  }
+
+  @Override
+  public void recordLoadSuccess(long loadTime) {
+    delegate.recordLoadSuccess(loadTime);
+    sample(loadTime);
+  }
+
+  @Override
+  public void recordLoadFailure(long loadTime) {
+    delegate.recordLoadFailure(loadTime);
+    sample(loadTime);
+  }
+
+  @Override
+  public void recordEviction(int weight, RemovalCause cause) {
+    delegate.recordEviction(weight, cause);
+  }
+
+  @Override
+  public CacheStats snapshot() {
+    return delegate.snapshot();
+  }
+
+  /**
+   * Calculate load latency percentiles over the most recent loads.
+   * @param percentiles the percentiles to calculate, each in the range [0, 1]
+   * @return the latency in milliseconds for each requested percentile, or zero if nothing has been loaded yet
+   */
+  public double[] loadPercentiles(double... percentiles) {
+    int count = (int) Math.min(SAMPLES, recorded.get());
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = latencies.get(i);
+    }
+    Arrays.sort(values);
+    double[] result = new double[percentiles.length];
+    if (count > 0) {
+      for (int i = 0; i < percentiles.length; i++) {
+        int index = (int) Math.ceil(Math.max(0, Math.min(1, percentiles[i])) * count) - 1;
+        result[i] = values[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+      }
+    }
+    return result;
+  }
+
+  private void sample(long loadTime) {
+    latencies.set((int) (recorded.getAndIncrement() % SAMPLES), loadTime);
+  }
+}
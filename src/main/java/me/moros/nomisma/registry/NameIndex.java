@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.registry;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Case-insensitive name to uuid index for all known accounts.
+ * Uses open addressing with linear probing over parallel arrays so each entry costs a single key reference
+ * and three longs. Reads are lock-free unless they race with a write.
+ * If multiple accounts share a name, the most recently seen one wins.
+ */
+final class NameIndex {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final StampedLock lock;
+
+  private String[] keys;
+  private long[] msb;
+  private long[] lsb;
+  private long[] seen;
+  private int size;
+
+  NameIndex() {
+    lock = new StampedLock();
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Index an account name.
+   * @param name the account name
+   * @param uuid the account uuid
+   * @param lastSeen the time the account was last seen, used to resolve duplicate names
+   */
+  void put(String name, UUID uuid, long lastSeen) {
+    String key = name.toLowerCase(Locale.ROOT);
+    long stamp = lock.writeLock();
+    try {
+      if ((size + 1) * 2 > keys.length) {
+        resize();
+      }
+      int index = indexOf(keys, key);
+      if (keys[index] == null) {
+        keys[index] = key;
+        size++;
+      } else if (seen[index] > lastSeen) {
+        return;
+      }
+      msb[index] = uuid.getMostSignificantBits();
+      lsb[index] = uuid.getLeastSignificantBits();
+      seen[index] = lastSeen;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Nullable UUID get(String name) {
+    String key = name.toLowerCase(Locale.ROOT);
+    long stamp = lock.tryOptimisticRead();
+    UUID result = find(key);
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        result = find(key);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return result;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private @Nullable UUID find(String key) {
+    String[] k = keys;
+    long[] m = msb;
+    long[] l = lsb;
+    // Arrays may be swapped by a concurrent resize, any inconsistent read is discarded by the caller
+    if (k.length != m.length || k.length != l.length) {
+      return null;
+    }
+    int index = indexOf(k, key);
+    return k[index] == null ? null : new UUID(m[index], l[index]);
+  }
+
+  private void resize() {
+    String[] oldKeys = keys;
+    long[] oldMsb = msb;
+    long[] oldLsb = lsb;
+    long[] oldSeen = seen;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      String key = oldKeys[i];
+      if (key != null) {
+        int index = indexOf(keys, key);
+        keys[index] = key;
+        msb[index] = oldMsb[i];
+        lsb[index] = oldLsb[i];
+        seen[index] = oldSeen[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    msb = new long[capacity];
+    lsb = new long[capacity];
+    seen = new long[capacity];
+  }
+
+  private static int indexOf(String[] keys, String key) {
+    int mask = keys.length - 1;
+    int index = mix(key.hashCode()) & mask;
+    while (keys[index] != null && !keys[index].equals(key)) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
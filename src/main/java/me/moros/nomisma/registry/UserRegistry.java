@@ -21,122 +21,391 @@ package me.moros.nomisma.registry;
 
 import java.math.BigDecimal;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import me.moros.nomisma.Nomisma;
 import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.ProfileSnapshot;
 import me.moros.nomisma.model.User;
-import me.moros.nomisma.storage.EconomyStorage;
+import me.moros.nomisma.storage.AsyncEconomyStorage;
+import me.moros.nomisma.storage.BalanceJournal;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.spongepowered.configurate.objectmapping.ConfigSerializable;
 
 /**
  * Registry for all valid users.
  */
 public final class UserRegistry implements Registry<User> {
   private final Map<UUID, User> onlineUsers;
-  private final Map<User, Map<Currency, BigDecimal>> pending;
+  private final Map<UUID, User> pending;
+  private final Map<User, Boolean> dirtyUsers;
+  private final NameIndex names;
+  private final ReadWriteLock flushLock;
+  private final AtomicBoolean flushQueued;
+  private final Cache<UUID, User> logins;
 
   private Nomisma parent;
-  private EconomyStorage storage;
+  private AsyncEconomyStorage storage;
+  private @Nullable BalanceJournal journal;
   private AsyncLoadingCache<UUID, User> cache;
+  private AsyncLoadingCache<String, UUID> nameLookups;
+  private Cache<UUID, Boolean> missing;
+  private @Nullable LatencyStatsCounter stats;
+  private @Nullable AccountFilter filter;
+  private volatile boolean filterReady;
+  private CompletableFuture<Boolean> lastFlush;
+  private volatile long flushes;
 
   UserRegistry() {
     onlineUsers = new ConcurrentHashMap<>();
     pending = new ConcurrentHashMap<>();
+    dirtyUsers = new ConcurrentHashMap<>();
+    names = new NameIndex();
+    flushLock = new ReentrantReadWriteLock();
+    flushQueued = new AtomicBoolean();
+    // Logins that are denied after pre-login never join, so their profiles expire
+    logins = Caffeine.newBuilder().expireAfterWrite(Duration.ofMinutes(1)).build();
+    lastFlush = CompletableFuture.completedFuture(true);
   }
 
-  public void init(Nomisma plugin, EconomyStorage storage) {
+  public void init(Nomisma plugin, AsyncEconomyStorage storage, @Nullable BalanceJournal journal) {
     if (cache == null) {
       this.parent = Objects.requireNonNull(plugin);
       this.storage = Objects.requireNonNull(storage);
-      cache = Caffeine.newBuilder().maximumSize(100).expireAfterAccess(Duration.ofMinutes(20))
-        .buildAsync(this.storage::loadProfile);
+      this.journal = journal;
+      Config config = plugin.configManager().config(List.of("cache"), new Config());
+      missing = Caffeine.newBuilder().maximumSize(Math.max(0, config.missingAccountsSize))
+        .expireAfterWrite(Duration.ofSeconds(Math.max(1, config.missingAccountsTtlSeconds))).build();
+      if (config.accountFilter) {
+        filter = new AccountFilter(config.expectedAccounts, 0.01);
+      }
+      Caffeine<UUID, User> builder = Caffeine.newBuilder().maximumWeight(Math.max(1, config.maximumWeight))
+        .weigher((UUID uuid, User user) -> 1 + user.currencyCount())
+        .expireAfterAccess(Duration.ofMinutes(Math.max(1, config.expireAfterAccessMinutes)))
+        .evictionListener((UUID uuid, User user, RemovalCause cause) -> pin(user));
+      if (config.refreshAfterWriteMinutes > 0) {
+        builder.refreshAfterWrite(Duration.ofMinutes(config.refreshAfterWriteMinutes));
+      }
+      if (config.recordStats) {
+        stats = new LatencyStatsCounter();
+        builder.recordStats(() -> stats);
+      }
+      cache = builder.buildAsync(new ProfileLoader());
+      // Concurrent lookups for the same name share a single query
+      nameLookups = Caffeine.newBuilder().maximumSize(1000)
+        .expireAfterWrite(Duration.ofSeconds(Math.max(1, config.missingAccountsTtlSeconds)))
+        .buildAsync((name, executor) -> lookup(name));
       long ticks = 1200 * Math.max(1, plugin.configManager().config().saveIntervalMinutes());
       plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::processTasks, 1, ticks);
+      storage.submit(this::buildNameIndex);
     }
   }
 
-  private void processTasks() {
-    if (pending.isEmpty()) {
-      return;
+  private boolean buildNameIndex() {
+    long startTime = System.currentTimeMillis();
+    boolean success = storage.blocking().forEachAccount((name, uuid, lastSeen) -> {
+      names.put(name, uuid, lastSeen);
+      if (filter != null) {
+        filter.put(uuid);
+      }
+    });
+    if (success) {
+      filterReady = filter != null;
+      long delta = System.currentTimeMillis() - startTime;
+      parent.logger().info("Indexed " + names.size() + " account names (" + delta + "ms)");
     }
-    var copy = new HashMap<>(pending);
-    pending.clear();
-    copy.forEach(storage::saveProfile);
+    return success;
   }
 
-  public @Nullable User userSync(String name) {
-    OfflinePlayer player = Bukkit.getOfflinePlayerIfCached(name);
-    if (player != null) {
-      return userSync(player.getUniqueId());
-    } else {
-      if (cache != null) {
-        User user = storage.loadProfile(name);
-        if (user != null) {
-          cache.synchronous().put(user.uuid(), user);
-          return user;
+  private CompletableFuture<@Nullable User> load(UUID uuid) {
+    User current = inMemory(uuid);
+    if (current != null) {
+      return CompletableFuture.completedFuture(current);
+    }
+    return storage.loadProfileAsync(uuid).thenApply(user -> {
+      if (user == null) {
+        missing.put(uuid, Boolean.TRUE);
+        return null;
+      }
+      known(user.uuid(), user.name(), 0);
+      return overlay(user);
+    });
+  }
+
+  /**
+   * Reload a cached profile in the background and update it in place so every holder of the instance sees fresh data.
+   * Online and dirty users are skipped as their in-memory state is authoritative.
+   */
+  private CompletableFuture<User> reload(UUID uuid, User old) {
+    if (onlineUsers.containsKey(uuid) || pending.containsKey(uuid)) {
+      return CompletableFuture.completedFuture(old);
+    }
+    long generation = flushes;
+    return storage.loadProfileAsync(uuid).thenApply(fresh -> {
+      if (fresh == null) {
+        return old;
+      }
+      Lock lock = changeLock();
+      lock.lock();
+      try {
+        // Skip if a flush completed or changes were made while loading, the loaded row may be older than memory
+        if (generation == flushes && !pending.containsKey(uuid)) {
+          old.refresh(fresh);
         }
+      } finally {
+        lock.unlock();
       }
+      return old;
+    });
+  }
+
+  /**
+   * Prefer an online or unflushed instance over a freshly loaded one, as the stored row does not include their changes.
+   */
+  private User overlay(User loaded) {
+    User current = inMemory(loaded.uuid());
+    return current == null ? loaded : current;
+  }
+
+  private @Nullable User inMemory(UUID uuid) {
+    User online = onlineUsers.get(uuid);
+    return online == null ? pending.get(uuid) : online;
+  }
+
+  /**
+   * Users evicted from the cache with unflushed changes stay pinned in the pending map until they are saved.
+   * Loads are served from the pending map in the meantime, so the cache can never observe a stale row.
+   */
+  private void pin(@Nullable User user) {
+    if (user != null && user.isDirty()) {
+      pending.putIfAbsent(user.uuid(), user);
     }
-    return null;
   }
 
+  /**
+   * Unpin a user once its changes are saved, unless it was modified again in the meantime.
+   */
+  private void unpin(User user) {
+    dirtyUsers.computeIfPresent(user, (u, ignore) -> u.isDirty() ? Boolean.TRUE : null);
+    pending.computeIfPresent(user.uuid(), (uuid, u) -> u == user && !u.isDirty() ? null : u);
+  }
+
+  /**
+   * Record an account that exists in storage.
+   */
+  private void known(UUID uuid, String name, long lastSeen) {
+    names.put(name, uuid, lastSeen);
+    missing.invalidate(uuid);
+    if (filter != null) {
+      filter.put(uuid);
+    }
+  }
+
+  /**
+   * Check whether an account is known to not exist, without querying storage.
+   * The filter is filled from the primary database and this server, so it is authoritative only when storage is not shared.
+   * @return true if the account definitely does not exist or was recently looked up and not found
+   */
+  private boolean definitelyMissing(UUID uuid) {
+    return (filterReady && !filter.mightContain(uuid)) || missing.getIfPresent(uuid) != null;
+  }
+
+  /**
+   * Flush all pending changes. Flushes are chained so journal segments are always released in order.
+   * @return a future that completes once this flush is done
+   */
+  private synchronized CompletableFuture<Boolean> processTasks() {
+    lastFlush = lastFlush.exceptionally(t -> false).thenCompose(ignore -> flush());
+    return lastFlush;
+  }
+
+  private CompletableFuture<Boolean> flush() {
+    if (dirtyUsers.isEmpty()) {
+      return CompletableFuture.completedFuture(true);
+    }
+    @Nullable Checkpoint checkpoint;
+    List<ProfileSnapshot> snapshots = new ArrayList<>();
+    // Block balance changes so the journal checkpoint covers exactly the drained changes
+    flushLock.writeLock().lock();
+    try {
+      checkpoint = journal == null ? null : journal.checkpoint();
+      // Users stay pending until their snapshot is saved so loads keep resolving to them
+      for (User user : dirtyUsers.keySet()) {
+        ProfileSnapshot snapshot = user.snapshot();
+        if (snapshot.isEmpty()) {
+          unpin(user);
+        } else {
+          snapshots.add(snapshot);
+        }
+      }
+    } finally {
+      flushLock.writeLock().unlock();
+    }
+    if (journal != null) {
+      journal.sync(); // Sealed segments reach the disk before their changes are committed
+    }
+    return storage.saveProfilesAsync(snapshots, checkpoint).exceptionally(t -> {
+      parent.logger().warn(t.getMessage(), t);
+      return false;
+    }).thenApply(success -> {
+      if (success) {
+        if (journal != null && checkpoint != null) {
+          journal.release(checkpoint);
+        }
+        flushes++;
+        snapshots.forEach(s -> unpin(s.user()));
+      } else {
+        snapshots.forEach(s -> s.user().restore(s));
+      }
+      return success;
+    });
+  }
+
+  /**
+   * Blocking variant of {@link #user(String)}.
+   * Callers such as Vault may run on the main thread, so this waits for at most the configured storage timeout.
+   * @return the user or null if not found, loading failed or timed out
+   */
+  public @Nullable User userSync(String name) {
+    return join(user(name));
+  }
+
+  /**
+   * Blocking variant of {@link #user(UUID)}.
+   * Callers such as Vault may run on the main thread, so this waits for at most the configured storage timeout.
+   * @return the user or null if not found, loading failed or timed out
+   */
   public @Nullable User userSync(UUID uuid) {
-    return cache == null ? null : cache.synchronous().get(uuid);
+    return join(user(uuid));
+  }
+
+  private @Nullable User join(CompletableFuture<@Nullable User> future) {
+    try {
+      return future.get(storage.timeout(), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException | CancellationException e) {
+      parent.logger().warn(e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
   }
 
+  /**
+   * Load or create a profile without adding it to the cache, reusing any instance that is already in memory.
+   * Only logins mark an account as seen, so this keeps the stored last seen time.
+   */
   public User userWithoutCache(UUID uuid, String name) {
-    return storage.createProfile(uuid, name);
+    User user = cachedUser(uuid);
+    if (user == null) {
+      user = overlay(storage.blocking().loadOrCreateProfile(uuid, name));
+    }
+    known(user.uuid(), user.name(), 0);
+    return user;
+  }
+
+  private @Nullable User cachedUser(UUID uuid) {
+    CompletableFuture<User> future = cache == null ? null : cache.getIfPresent(uuid);
+    if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+      return future.join();
+    }
+    return null;
   }
 
   public CompletableFuture<@Nullable User> user(String name) {
     OfflinePlayer player = Bukkit.getOfflinePlayerIfCached(name);
-    if (player != null) {
-      return user(player.getUniqueId());
+    UUID uuid = player == null ? names.get(name) : player.getUniqueId();
+    if (uuid != null) {
+      return user(uuid);
     } else {
+      // Accounts may be created or renamed by other servers sharing storage, so a miss always queries it
       if (cache != null) {
-        return parent.executor().async().submit(() -> storage.loadProfile(name)).thenApply(user -> {
-          if (user != null) {
-            cache.synchronous().put(user.uuid(), user);
-            return user;
-          }
-          return null;
-        });
+        return nameLookups.get(name.toLowerCase(Locale.ROOT))
+          .thenCompose(id -> id == null ? CompletableFuture.completedFuture(null) : user(id));
       }
     }
     return CompletableFuture.completedFuture(null);
   }
 
+  private CompletableFuture<@Nullable UUID> lookup(String name) {
+    return storage.loadProfileAsync(name).thenApply(user -> {
+      if (user == null) {
+        return null;
+      }
+      known(user.uuid(), user.name(), 0);
+      cache.asMap().putIfAbsent(user.uuid(), CompletableFuture.completedFuture(overlay(user)));
+      return user.uuid();
+    });
+  }
+
   public CompletableFuture<@Nullable User> user(UUID uuid) {
-    return cache == null ? CompletableFuture.completedFuture(null) : cache.get(uuid);
+    if (cache == null || definitelyMissing(uuid)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return cache.get(uuid);
   }
 
-  public User forceLoad(UUID uuid, String name) {
-    onlineUsers.remove(uuid);
-    cache.synchronous().invalidate(uuid);
-    return cache.synchronous().get(uuid, id -> storage.createProfile(uuid, name));
+  private CompletableFuture<User> createProfile(UUID uuid, String name) {
+    return storage.createProfileAsync(uuid, name).thenApply(loaded -> {
+      User user = overlay(loaded);
+      user.name(name);
+      return user;
+    });
   }
 
+  /**
+   * Load a profile during login, it is kept until the player joins.
+   */
   public User forceLoad(UUID uuid, String name, long timeout) throws ExecutionException, InterruptedException, TimeoutException {
+    known(uuid, name, System.currentTimeMillis());
     onlineUsers.remove(uuid);
     cache.synchronous().invalidate(uuid);
-    return cache.get(uuid, id -> storage.createProfile(uuid, name)).get(timeout, TimeUnit.MILLISECONDS);
+    User user = cache.get(uuid, (id, executor) -> createProfile(uuid, name))
+      .get(timeout, TimeUnit.MILLISECONDS);
+    logins.put(uuid, user);
+    return user;
+  }
+
+  /**
+   * Get the profile that was loaded during login. This never queries storage as it runs on the main thread.
+   * @param uuid the uuid of the user
+   * @return the user or null if it was not loaded during login
+   */
+  public @Nullable User loadedUser(UUID uuid) {
+    User user = logins.getIfPresent(uuid);
+    if (user != null) {
+      logins.invalidate(uuid);
+      return user;
+    }
+    return cachedUser(uuid);
   }
 
   public User onlineUser(Player player) {
@@ -146,14 +415,56 @@ public final class UserRegistry implements Registry<User> {
   public void invalidate(UUID uuid) {
     User user = onlineUsers.remove(uuid);
     if (user != null && cache != null) {
+      pin(user); // Explicit invalidation does not notify the eviction listener
       cache.synchronous().invalidate(uuid);
-      storage.saveProfileAsync(user);
+      if (user.isDirty()) {
+        scheduleFlush(); // Save as soon as possible in case the player switches servers
+      }
+    }
+  }
+
+  /**
+   * Queue a flush on the storage executor, coalescing requests made while one is already queued.
+   */
+  private void scheduleFlush() {
+    if (flushQueued.compareAndSet(false, true)) {
+      try {
+        CompletableFuture.runAsync(() -> {
+          flushQueued.set(false);
+          processTasks();
+        }, storage.executor());
+      } catch (RejectedExecutionException e) {
+        flushQueued.set(false); // Changes stay pending until the next periodic flush
+      }
+    }
+  }
+
+  /**
+   * @return the stats of the offline profile cache or null if stats are disabled
+   */
+  public @Nullable LatencyStatsCounter cacheStats() {
+    return stats;
+  }
+
+  /**
+   * @return the estimated amount of cached profiles
+   */
+  public long cacheSize() {
+    return cache == null ? 0 : cache.synchronous().estimatedSize();
+  }
+
+  /**
+   * @return the total weight of cached profiles
+   */
+  public long cacheWeight() {
+    if (cache == null) {
+      return 0;
     }
+    return cache.synchronous().policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
   }
 
   public void saveAll() {
-    onlineUsers.values().forEach(u -> pending.put(u, u.balanceSnapshot()));
-    processTasks();
+    processTasks().join();
   }
 
   public void register(User user) {
@@ -169,7 +480,58 @@ public final class UserRegistry implements Registry<User> {
     return Collections.unmodifiableCollection(onlineUsers.values()).iterator();
   }
 
+  /**
+   * Register a user with unflushed changes. Every dirty instance is flushed, even if another one is pinned for its uuid.
+   */
   public void addPending(User user) {
-    pending.put(user, user.balanceSnapshot());
+    dirtyUsers.put(user, Boolean.TRUE);
+    pending.putIfAbsent(user.uuid(), user);
+  }
+
+  public void addPending(User user, Currency currency, BigDecimal amount, BigDecimal delta) {
+    addPending(user);
+    if (journal != null) {
+      journal.append(user, currency, amount, delta);
+    }
+  }
+
+  public void addPending(User user, Currency currency, long amount, long delta) {
+    addPending(user);
+    if (journal != null) {
+      journal.append(user, currency, amount, delta);
+    }
+  }
+
+  /**
+   * Balance changes must hold this lock while they are applied and journaled.
+   * @return the shared lock that excludes draining pending changes
+   */
+  public Lock changeLock() {
+    return flushLock.readLock();
+  }
+
+  private final class ProfileLoader implements AsyncCacheLoader<UUID, User> {
+    @Override
+    public CompletableFuture<? extends User> asyncLoad(UUID uuid, Executor executor) {
+      return load(uuid);
+    }
+
+    @Override
+    public CompletableFuture<? extends User> asyncReload(UUID uuid, User oldValue, Executor executor) {
+      return reload(uuid, oldValue);
+    }
+  }
+
+  @ConfigSerializable
+  private static final class Config {
+    private final long maximumWeight = 20_000;
+    private final long expireAfterAccessMinutes = 20;
+    private final long refreshAfterWriteMinutes = 5;
+    private final boolean recordStats = true;
+    // Only safe for a single server, accounts created elsewhere are not added to the filter
+    private final boolean accountFilter = false;
+    private final int expectedAccounts = 250_000;
+    private final int missingAccountsSize = 10_000;
+    private final long missingAccountsTtlSeconds = 5;
   }
 }
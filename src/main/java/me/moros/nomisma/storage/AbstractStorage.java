@@ -0,0 +1,459 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.storage;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.Leaderboard.LeaderboardEntry;
+import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
+import me.moros.nomisma.model.User;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
+import me.moros.nomisma.storage.sql.SqlQueries;
+import me.moros.storage.SqlStreamReader;
+import me.moros.storage.StorageDataSource;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.argument.AbstractArgumentFactory;
+import org.jdbi.v3.core.argument.Argument;
+import org.jdbi.v3.core.config.ConfigRegistry;
+import org.jdbi.v3.core.statement.Batch;
+import org.jdbi.v3.core.statement.Query;
+import org.jdbi.v3.core.statement.StatementContext;
+
+/**
+ * Base class for Jdbi backed storage implementations.
+ */
+abstract class AbstractStorage implements EconomyStorage {
+  protected final Nomisma parent;
+  protected final StorageDataSource dataSource;
+  protected final @Nullable StorageDataSource readSource;
+  protected final Jdbi DB;
+  protected final Jdbi readDB;
+  protected final int batchSize;
+  protected final int fetchSize;
+  protected final boolean deltaUpdates;
+  private final String upsertPlayer;
+
+  protected AbstractStorage(Nomisma parent, StorageDataSource dataSource, @Nullable StorageDataSource readSource,
+                            int batchSize, int fetchSize, boolean deltaUpdates) {
+    this.parent = parent;
+    this.dataSource = dataSource;
+    this.readSource = readSource;
+    this.batchSize = batchSize;
+    this.fetchSize = fetchSize;
+    this.deltaUpdates = deltaUpdates;
+    this.upsertPlayer = SqlQueries.upsertPlayer(dataSource.type());
+    DB = createJdbi(this.dataSource);
+    readDB = readSource == null ? DB : createJdbi(readSource);
+  }
+
+  private Jdbi createJdbi(StorageDataSource source) {
+    Jdbi jdbi = Jdbi.create(source.source());
+    if (!nativeUuid()) {
+      jdbi.registerArgument(new UUIDArgumentFactory());
+    }
+    return jdbi;
+  }
+
+  abstract boolean init(Function<String, InputStream> resourceProvider);
+
+  @Override
+  public void close() {
+    dataSource.source().close();
+    if (readSource != null) {
+      readSource.source().close();
+    }
+  }
+
+  @Override
+  public @Nullable User loadProfile(String name) {
+    try {
+      // Resolve the name on the read pool but load the row from the primary so cached profiles are never stale
+      UUID uuid = findUuid(readDB, name);
+      if (uuid == null && readSource != null) {
+        // Misses are cached by the caller, confirm them on the primary in case the replica is lagging
+        uuid = findUuid(DB, name);
+      }
+      return uuid == null ? null : loadProfile(uuid);
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  private static @Nullable UUID findUuid(Jdbi db, String name) {
+    return db.withHandle(handle -> handle.createQuery(SqlQueries.PLAYER_SELECT_UUID_BY_NAME.query())
+      .bind(0, name.toLowerCase(Locale.ROOT)).map((rs, ctx) -> rs.getObject("player_uuid", UUID.class))
+      .findOne().orElse(null));
+  }
+
+  @Override
+  public User createProfile(UUID uuid, String name) {
+    // Create the row or refresh its name in a single statement, fetching the result in the same transaction if needed
+    return DB.inTransaction(handle -> {
+      Map<String, Object> values = Map.of("player_uuid", uuid, "player_name", name,
+        "player_name_lower", name.toLowerCase(Locale.ROOT), "last_seen", System.currentTimeMillis());
+      if (upsertReturnsRow()) {
+        return mapProfile(handle, handle.createQuery(upsertPlayer).bindMap(values));
+      }
+      handle.createUpdate(upsertPlayer).bindMap(values).execute();
+      return mapProfile(handle, handle.createQuery(SqlQueries.PLAYER_SELECT_BY_UUID.query()).bind(0, uuid));
+    });
+  }
+
+  @Override
+  public User loadOrCreateProfile(UUID uuid, String name) {
+    return DB.inTransaction(handle -> {
+      if (handle.createQuery(SqlQueries.PLAYER_SELECT_BY_UUID.query()).bind(0, uuid).mapToMap().findOne().isEmpty()) {
+        handle.createUpdate(SqlQueries.PLAYER_INSERT.query()).bindMap(Map.of("player_uuid", uuid, "player_name", name,
+          "player_name_lower", name.toLowerCase(Locale.ROOT), "last_seen", 0L)).execute();
+      }
+      return mapProfile(handle, handle.createQuery(SqlQueries.PLAYER_SELECT_BY_UUID.query()).bind(0, uuid));
+    });
+  }
+
+  /**
+   * Map the single player row returned by a query to a profile.
+   * @param handle the handle the query belongs to
+   * @param query the bound query
+   * @return the mapped profile
+   */
+  protected abstract User mapProfile(Handle handle, Query query);
+
+  @Override
+  public boolean forEachAccount(AccountVisitor visitor) {
+    // Read from the primary, a lagging replica would make the account filter reject accounts that exist
+    return forEachRow(DB, SqlQueries.PLAYER_SELECT_ACCOUNTS.query(), (rs, ctx) ->
+      visitor.visit(rs.getString("player_name"), rs.getObject("player_uuid", UUID.class), rs.getLong("last_seen")));
+  }
+
+  /**
+   * Stream the rows of a query without buffering the whole result set.
+   * @param db the pool to query
+   * @param query the query to run
+   * @param consumer the consumer to accept each row
+   * @return true if all rows were visited successfully, false otherwise
+   */
+  protected boolean forEachRow(Jdbi db, String query, RowConsumer consumer) {
+    try {
+      // Drivers like PostgreSQL only honor the fetch size when auto-commit is disabled
+      db.useTransaction(handle -> handle.createQuery(query).setFetchSize(fetchSize).scanResultSet((supplier, ctx) -> {
+        ResultSet rs = supplier.get();
+        while (rs.next()) {
+          consumer.accept(rs, ctx);
+        }
+        return null;
+      }));
+      return true;
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  @Override
+  public long committedSegment(String journal) {
+    return DB.withHandle(handle -> handle.createQuery(SqlQueries.JOURNAL_SELECT.query()).bind(0, journal)
+      .mapTo(Long.class).findOne().orElse(-1L));
+  }
+
+  /**
+   * Record a journal checkpoint as part of the transaction that saves its changes.
+   * @param handle the handle of the transaction
+   * @param checkpoint the checkpoint to record or null if journaling is disabled
+   */
+  private static void commitCheckpoint(Handle handle, @Nullable Checkpoint checkpoint) {
+    if (checkpoint == null) {
+      return;
+    }
+    Map<String, Object> values = Map.of("journal_id", checkpoint.journal(), "segment_id", checkpoint.segment());
+    if (handle.createUpdate(SqlQueries.JOURNAL_UPDATE.query()).bindMap(values).execute() == 0) {
+      handle.createUpdate(SqlQueries.JOURNAL_INSERT.query()).bindMap(values).execute();
+    }
+  }
+
+  /**
+   * Create the table that tracks committed journal checkpoints.
+   */
+  protected boolean createJournalTable() {
+    try {
+      DB.useHandle(handle -> handle.createUpdate(SqlQueries.JOURNAL_CREATE.query()).execute());
+      return true;
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  protected boolean executeScript(Function<String, InputStream> resourceProvider, String name) {
+    Collection<String> statements;
+    String path = Path.of("schema", name + ".sql").toString();
+    try (InputStream stream = resourceProvider.apply(path)) {
+      statements = SqlStreamReader.parseQueries(stream);
+    } catch (Exception e) {
+      return false;
+    }
+    DB.useHandle(handle -> {
+      Batch batch = handle.createBatch();
+      statements.forEach(batch::add);
+      batch.execute();
+    });
+    return true;
+  }
+
+  /**
+   * Add the lowercase name and last seen columns to player tables created before they existed.
+   * Each step is checked separately so an interrupted upgrade is completed on next startup.
+   */
+  protected void upgradeNameColumns() {
+    Collection<String> existing = columns("nomisma_players");
+    List<String> missing = SqlQueries.NAME_COLUMNS.stream()
+      .filter(c -> !existing.contains(c.substring(0, c.indexOf(' ')))).toList();
+    try {
+      if (!missing.isEmpty()) {
+        DB.useHandle(handle -> {
+          for (String query : SqlQueries.addColumns(dataSource.type(), missing, false)) {
+            handle.createUpdate(query).execute();
+          }
+        });
+      }
+      // Rows created by this version always have a lowercase name, only upgraded rows are empty
+      int rows = DB.withHandle(handle -> handle.createUpdate(SqlQueries.PLAYER_FILL_NAME_LOWER.query()).execute());
+      if (rows > 0) {
+        parent.logger().info("Filled lowercase names for " + rows + " players.");
+      }
+      if (!indexes("nomisma_players").contains(SqlQueries.NAME_INDEX)) {
+        DB.useHandle(handle -> handle.createUpdate(SqlQueries.PLAYER_CREATE_NAME_INDEX.query()).execute());
+        parent.logger().info("Created the lowercase name index.");
+      }
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+  }
+
+  protected boolean tableExists(String table) {
+    try {
+      return DB.withHandle(handle -> {
+        String catalog = handle.getConnection().getCatalog();
+        return handle.queryMetadata(d -> d.getTables(catalog, null, "%", null))
+          .map(x -> x.getColumn("TABLE_NAME", String.class)).stream().anyMatch(table::equalsIgnoreCase);
+      });
+    } catch (Exception e) {
+      parent.logger().warn(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  /**
+   * Query the column names of the specified table.
+   * @param table the table to inspect
+   * @return the lowercase column names
+   */
+  protected Collection<String> columns(String table) {
+    try {
+      return DB.withHandle(handle -> {
+        String catalog = handle.getConnection().getCatalog();
+        boolean upperCase = handle.getConnection().getMetaData().storesUpperCaseIdentifiers();
+        String pattern = upperCase ? table.toUpperCase(Locale.ROOT) : table;
+        return handle.queryMetadata(d -> d.getColumns(catalog, null, pattern, null))
+          .map(x -> new String[]{x.getColumn("TABLE_NAME", String.class), x.getColumn("COLUMN_NAME", String.class)})
+          .stream().filter(x -> table.equalsIgnoreCase(x[0])).map(x -> x[1].toLowerCase(Locale.ROOT)).toList();
+      });
+    } catch (Exception e) {
+      parent.logger().warn(e.getMessage(), e);
+    }
+    return List.of();
+  }
+
+  /**
+   * Query the index names of the specified table.
+   * @param table the table to inspect
+   * @return the lowercase index names
+   */
+  protected Collection<String> indexes(String table) {
+    try {
+      return DB.withHandle(handle -> {
+        String catalog = handle.getConnection().getCatalog();
+        boolean upperCase = handle.getConnection().getMetaData().storesUpperCaseIdentifiers();
+        String pattern = upperCase ? table.toUpperCase(Locale.ROOT) : table;
+        return handle.queryMetadata(d -> d.getIndexInfo(catalog, null, pattern, false, true))
+          .map(x -> x.getColumn("INDEX_NAME", String.class)).stream()
+          .filter(Objects::nonNull).map(x -> x.toLowerCase(Locale.ROOT)).distinct().toList();
+      });
+    } catch (Exception e) {
+      parent.logger().warn(e.getMessage(), e);
+    }
+    return List.of();
+  }
+
+  protected LeaderboardResult topBalances(String query, int offset, int limit) {
+    try {
+      return new LeaderboardResult(readDB.withHandle(handle -> handle.createQuery(query)
+        .bind("offset", Math.max(0, offset)).bind("limit", Math.max(1, Math.min(limit, 100)))
+        .map(this::leaderboardMapper).list()));
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return new LeaderboardResult(List.of());
+  }
+
+  protected Account accountMapper(ResultSet rs, StatementContext ctx) throws SQLException {
+    return new Account(rs.getObject("player_uuid", UUID.class), rs.getString("player_name"));
+  }
+
+  protected LeaderboardEntry leaderboardMapper(ResultSet rs, StatementContext ctx) throws SQLException {
+    return new LeaderboardEntry(rs.getString("player_name"), rs.getBigDecimal("balance"));
+  }
+
+  /**
+   * Get the balance changes to write for a snapshot.
+   * @param snapshot the snapshot to write
+   * @return the deltas if delta updates are enabled, the absolute values otherwise
+   */
+  protected Map<Currency, BigDecimal> changes(ProfileSnapshot snapshot) {
+    return deltaUpdates ? snapshot.delta() : snapshot.balance();
+  }
+
+  /**
+   * Map the changes of a snapshot to their respective column names in the players table.
+   * @param snapshot the snapshot to map
+   * @return the changed values mapped by column name
+   */
+  protected Map<String, Object> columnMap(ProfileSnapshot snapshot) {
+    Map<String, Object> columns = new HashMap<>();
+    if (snapshot.name() != null) {
+      columns.put("player_name", snapshot.name());
+      columns.put("player_name_lower", snapshot.name().toLowerCase(Locale.ROOT));
+    }
+    changes(snapshot).forEach((c, v) -> columns.put(c.identifier(), v));
+    return columns;
+  }
+
+  /**
+   * Run the writes of a save in a single transaction that also records the journal checkpoint.
+   * Profiles saved as deltas are then reconciled with the balances stored by the same transaction.
+   * @param snapshots the saved snapshots
+   * @param checkpoint the checkpoint to record or null if journaling is disabled
+   * @param writes the statements that save the snapshots
+   * @return true if the transaction was committed
+   */
+  protected boolean saveInTransaction(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint,
+                                      Consumer<Handle> writes) {
+    List<ProfileSnapshot> changed = deltaUpdates ? snapshots.stream().filter(s -> !s.delta().isEmpty()).toList() : List.of();
+    try {
+      Map<UUID, Map<Currency, BigDecimal>> stored = DB.inTransaction(handle -> {
+        writes.accept(handle);
+        commitCheckpoint(handle, checkpoint);
+        // Read back incremented balances while the updated rows are still locked by this transaction
+        Map<UUID, Map<Currency, BigDecimal>> result = new HashMap<>();
+        for (int i = 0; i < changed.size(); i += batchSize) {
+          List<UUID> uuids = changed.subList(i, Math.min(i + batchSize, changed.size())).stream().map(s -> s.user().uuid()).toList();
+          readBalances(handle, uuids, result);
+        }
+        return result;
+      });
+      reconcile(changed, stored);
+      return true;
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  /**
+   * Read the stored balances of a batch of profiles.
+   * @param handle the handle of the transaction
+   * @param uuids the profiles to read
+   * @param result the map to fill with balances mapped by user
+   */
+  protected abstract void readBalances(Handle handle, List<UUID> uuids, Map<UUID, Map<Currency, BigDecimal>> result);
+
+  /**
+   * Apply the balances stored after a delta update to the users that were saved.
+   * @param snapshots the saved snapshots
+   * @param stored the stored balances mapped by user
+   */
+  private static void reconcile(Collection<ProfileSnapshot> snapshots, Map<UUID, Map<Currency, BigDecimal>> stored) {
+    for (ProfileSnapshot snapshot : snapshots) {
+      Map<Currency, BigDecimal> balance = stored.getOrDefault(snapshot.user().uuid(), Map.of());
+      for (Currency currency : snapshot.delta().keySet()) {
+        BigDecimal value = balance.get(currency);
+        if (value != null) {
+          snapshot.user().reconcile(currency, value);
+        }
+      }
+    }
+  }
+
+  private boolean upsertReturnsRow() {
+    return switch (dataSource.type()) {
+      case MARIADB, MYSQL, HSQL -> false;
+      default -> true;
+    };
+  }
+
+  private boolean nativeUuid() {
+    return switch (dataSource.type()) {
+      case POSTGRESQL, H2, HSQL -> true;
+      default -> false;
+    };
+  }
+
+  @FunctionalInterface
+  protected interface RowConsumer {
+    void accept(ResultSet rs, StatementContext ctx) throws SQLException;
+  }
+
+  protected record Account(UUID uuid, String name) {
+  }
+
+  private static final class UUIDArgumentFactory extends AbstractArgumentFactory<UUID> {
+    private UUIDArgumentFactory() {
+      super(Types.BINARY);
+    }
+
+    @Override
+    protected Argument build(UUID value, ConfigRegistry config) {
+      ByteBuffer buffer = ByteBuffer.wrap(new byte[16]);
+      buffer.putLong(value.getMostSignificantBits());
+      buffer.putLong(value.getLeastSignificantBits());
+      return (position, statement, ctx) -> statement.setBytes(position, buffer.array());
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.storage;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
+import me.moros.nomisma.model.User;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Non-blocking view of an {@link EconomyStorage}.
+ * All calls run on a dedicated I/O executor, limited to the size of the connection pool,
+ * and fail fast when too many calls are waiting.
+ * Reads fail with a {@link java.util.concurrent.TimeoutException} if they take too long,
+ * writes are never timed out as their outcome must be known.
+ */
+public interface AsyncEconomyStorage {
+  /**
+   * @return the underlying blocking storage, for callers that already run off the main thread
+   */
+  EconomyStorage blocking();
+
+  /**
+   * @return the I/O executor, for other blocking work such as file access that does not use the database
+   */
+  Executor executor();
+
+  /**
+   * Run a blocking task that uses the database, such as a migration, on the I/O executor.
+   * The task holds a storage permit like any other call so it can never starve the connection pool.
+   * @param task the task to run
+   * @return a future with the result of the task
+   */
+  <T> CompletableFuture<T> submit(Supplier<T> task);
+
+  /**
+   * @return the time in milliseconds after which reads fail
+   */
+  long timeout();
+
+  CompletableFuture<User> createProfileAsync(UUID uuid, String name);
+
+  CompletableFuture<@Nullable User> loadProfileAsync(UUID uuid);
+
+  CompletableFuture<@Nullable User> loadProfileAsync(String name);
+
+  CompletableFuture<Boolean> saveProfilesAsync(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint);
+
+  CompletableFuture<LeaderboardResult> topBalancesAsync(Currency currency, int offset, int limit);
+
+  /**
+   * Wait for queued calls to complete and close the underlying storage.
+   */
+  void close();
+}
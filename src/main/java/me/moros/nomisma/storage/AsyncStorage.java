@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.storage;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
+import me.moros.nomisma.model.User;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+final class AsyncStorage implements AsyncEconomyStorage {
+  private final Nomisma parent;
+  private final EconomyStorage storage;
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final AtomicInteger queued;
+  private final int maxQueued;
+  private final long timeout;
+
+  /**
+   * @param permits the maximum amount of concurrent storage calls, usually the size of the connection pool
+   * @param maxQueued the maximum amount of calls waiting for a permit
+   */
+  AsyncStorage(Nomisma parent, EconomyStorage storage, ExecutorService executor, int permits, int maxQueued, long timeout) {
+    this.parent = parent;
+    this.storage = storage;
+    this.executor = executor;
+    this.permits = new Semaphore(permits);
+    this.queued = new AtomicInteger();
+    this.maxQueued = maxQueued;
+    this.timeout = timeout;
+  }
+
+  @Override
+  public EconomyStorage blocking() {
+    return storage;
+  }
+
+  @Override
+  public Executor executor() {
+    return executor;
+  }
+
+  @Override
+  public <T> CompletableFuture<T> submit(Supplier<T> task) {
+    return submit(task, false);
+  }
+
+  @Override
+  public long timeout() {
+    return timeout;
+  }
+
+  @Override
+  public CompletableFuture<User> createProfileAsync(UUID uuid, String name) {
+    return submit(() -> storage.createProfile(uuid, name), true);
+  }
+
+  @Override
+  public CompletableFuture<@Nullable User> loadProfileAsync(UUID uuid) {
+    return submit(() -> storage.loadProfile(uuid), true);
+  }
+
+  @Override
+  public CompletableFuture<@Nullable User> loadProfileAsync(String name) {
+    return submit(() -> storage.loadProfile(name), true);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> saveProfilesAsync(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint) {
+    return submit(() -> storage.saveProfiles(snapshots, checkpoint), false);
+  }
+
+  @Override
+  public CompletableFuture<LeaderboardResult> topBalancesAsync(Currency currency, int offset, int limit) {
+    return submit(() -> storage.topBalances(currency, offset, limit), true);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+        parent.logger().warn("Timed out while waiting for pending storage calls to complete.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    storage.close();
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> task, boolean read) {
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Storage queue is full"));
+    }
+    CompletableFuture<T> future;
+    try {
+      // Calls beyond the connection pool size park on the semaphore instead of timing out inside the pool
+      future = CompletableFuture.supplyAsync(() -> {
+        permits.acquireUninterruptibly();
+        queued.decrementAndGet();
+        try {
+          return task.get();
+        } finally {
+          permits.release();
+        }
+      }, executor);
+    } catch (RejectedExecutionException e) {
+      queued.decrementAndGet();
+      return CompletableFuture.failedFuture(e);
+    }
+    return read ? future.orTimeout(timeout, TimeUnit.MILLISECONDS) : future;
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.storage;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.ProfileSnapshot;
+import me.moros.nomisma.model.User;
+import me.moros.nomisma.registry.Registries;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.spongepowered.configurate.objectmapping.ConfigSerializable;
+
+/**
+ * Append-only write-ahead journal for balance changes that have not been flushed to storage yet.
+ * Records are written to memory-mapped segment files that are forced to disk in batches.
+ * Segments are deleted once all the changes they contain have been successfully saved.
+ * The last saved segment is committed to storage along with the changes, so segments that were
+ * saved but not deleted before a crash are never replayed twice.
+ */
+public final class BalanceJournal {
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String ID_FILE = "journal.id";
+  private static final int HEADER_SIZE = 8;
+
+  private final Nomisma parent;
+  private final Path directory;
+  private final String id;
+  private final int segmentSize;
+  private final CRC32 crc;
+  private final List<Segment> sealed;
+
+  private long firstSegmentId;
+  private long segmentId;
+  private @Nullable Segment segment;
+
+  private BalanceJournal(Nomisma parent, Path directory, String id, int segmentSize) {
+    this.parent = parent;
+    this.directory = directory;
+    this.id = id;
+    this.segmentSize = segmentSize;
+    this.crc = new CRC32();
+    this.sealed = new ArrayList<>();
+  }
+
+  public static @Nullable BalanceJournal createInstance(Nomisma plugin) {
+    Config config = plugin.configManager().config(List.of("journal"), new Config());
+    if (!config.enabled) {
+      return null;
+    }
+    Path dir = plugin.path().resolve("data").resolve("journal");
+    String id;
+    try {
+      Files.createDirectories(dir);
+      id = readOrCreateId(dir.resolve(ID_FILE));
+    } catch (IOException e) {
+      plugin.logger().error(e.getMessage(), e);
+      return null;
+    }
+    BalanceJournal journal = new BalanceJournal(plugin, dir, id, Math.max(64, config.segmentSizeKB) * 1024);
+    long ticks = Math.max(1, config.syncIntervalTicks);
+    plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, journal::sync, ticks, ticks);
+    return journal;
+  }
+
+  private static String readOrCreateId(Path path) throws IOException {
+    if (Files.exists(path)) {
+      return UUID.fromString(Files.readString(path, StandardCharsets.UTF_8).trim()).toString();
+    }
+    String id = UUID.randomUUID().toString();
+    Files.writeString(path, id, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.SYNC);
+    return id;
+  }
+
+  /**
+   * Replay all journaled changes that were not committed into the given storage.
+   * This must run before any user data is loaded from storage.
+   * @param storage the storage to save recovered balances to
+   * @return the amount of profiles that were recovered or -1 if they could not be saved
+   */
+  public synchronized int replay(EconomyStorage storage) {
+    NavigableMap<Long, Path> segments = listSegments();
+    try {
+      long committed = storage.committedSegment(id);
+      // Segment ids keep increasing across restarts so they can always be compared to the committed one
+      segmentId = Math.max(committed, segments.isEmpty() ? -1 : segments.lastKey()) + 1;
+      firstSegmentId = segments.isEmpty() ? segmentId : segments.firstKey();
+      // Segments up to the committed one were saved but not deleted, replaying them would apply deltas twice
+      release(new Checkpoint(id, committed));
+      segments = segments.tailMap(committed, false);
+      if (segments.isEmpty()) {
+        firstSegmentId = segmentId;
+        return 0;
+      }
+      firstSegmentId = segments.firstKey();
+      Map<UUID, RecoveredProfile> recovered = new LinkedHashMap<>();
+      // A segment that cannot be read aborts the replay, it must never be released
+      for (Path path : segments.values()) {
+        readSegment(path, recovered);
+      }
+      Checkpoint checkpoint = new Checkpoint(id, segments.lastKey());
+      if (storage.saveProfiles(recoveredSnapshots(storage, recovered), checkpoint)) {
+        release(checkpoint);
+        firstSegmentId = segmentId;
+        return recovered.size();
+      }
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return -1;
+  }
+
+  private List<ProfileSnapshot> recoveredSnapshots(EconomyStorage storage, Map<UUID, RecoveredProfile> recovered) {
+    List<ProfileSnapshot> snapshots = new ArrayList<>();
+    for (var entry : recovered.entrySet()) {
+      RecoveredProfile profile = entry.getValue();
+      Map<Currency, BigDecimal> balance = new HashMap<>();
+      Map<Currency, BigDecimal> delta = new HashMap<>();
+      profile.balance.forEach((id, value) -> {
+        Currency currency = Registries.CURRENCIES.currency(id);
+        if (currency == null) {
+          parent.logger().warn("Discarding journaled balance for unknown currency " + id);
+        } else {
+          balance.put(currency, value);
+          delta.put(currency, profile.delta.get(id));
+        }
+      });
+      if (!balance.isEmpty()) {
+        snapshots.add(new ProfileSnapshot(storage.loadOrCreateProfile(entry.getKey(), profile.name), null, balance, delta));
+      }
+    }
+    return snapshots;
+  }
+
+  /**
+   * Append a balance change to the journal.
+   * @param user the user whose balance changed
+   * @param currency the currency that changed
+   * @param amount the new balance
+   * @param delta the difference from the previous balance
+   */
+  public void append(User user, Currency currency, BigDecimal amount, BigDecimal delta) {
+    String name = user.name();
+    String id = currency.identifier();
+    byte[] unscaled = amount.unscaledValue().toByteArray();
+    byte[] unscaledDelta = delta.unscaledValue().toByteArray();
+    int length = headerLength(name, id) + 4 + 2 + unscaled.length + 4 + 2 + unscaledDelta.length;
+    synchronized (this) {
+      try {
+        Segment current = activeSegment(length);
+        int start = beginRecord(current.buffer, user, name, id);
+        current.buffer.putInt(amount.scale()).putShort((short) unscaled.length).put(unscaled);
+        current.buffer.putInt(delta.scale()).putShort((short) unscaledDelta.length).put(unscaledDelta);
+        endRecord(current, start, length);
+      } catch (IOException e) {
+        parent.logger().error(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Append a balance change in minor units to the journal, writing straight into the mapped segment without allocating.
+   * Records use the same layout as {@link #append(User, Currency, BigDecimal, BigDecimal)}.
+   * @param user the user whose balance changed
+   * @param currency the currency that changed
+   * @param amount the new balance in minor units
+   * @param delta the difference from the previous balance in minor units
+   */
+  public void append(User user, Currency currency, long amount, long delta) {
+    String name = user.name();
+    String id = currency.identifier();
+    int length = headerLength(name, id) + 4 + 2 + byteLength(amount) + 4 + 2 + byteLength(delta);
+    synchronized (this) {
+      try {
+        Segment current = activeSegment(length);
+        int start = beginRecord(current.buffer, user, name, id);
+        putUnits(current.buffer, currency.scale(), amount);
+        putUnits(current.buffer, currency.scale(), delta);
+        endRecord(current, start, length);
+      } catch (IOException e) {
+        parent.logger().error(e.getMessage(), e);
+      }
+    }
+  }
+
+  private static int headerLength(String name, String id) {
+    return 16 + 2 + utf8Length(name) + 2 + utf8Length(id);
+  }
+
+  private static int beginRecord(ByteBuffer buffer, User user, String name, String id) {
+    int start = buffer.position();
+    buffer.position(start + HEADER_SIZE);
+    buffer.putLong(user.uuid().getMostSignificantBits()).putLong(user.uuid().getLeastSignificantBits());
+    putString(buffer, name);
+    putString(buffer, id);
+    return start;
+  }
+
+  private void endRecord(Segment current, int start, int length) {
+    ByteBuffer buffer = current.buffer;
+    int end = buffer.position();
+    int limit = buffer.limit();
+    crc.reset();
+    crc.update(buffer.position(start + HEADER_SIZE).limit(end));
+    buffer.limit(limit);
+    // Write header last so a torn record is never considered valid
+    buffer.putInt(start + 4, (int) crc.getValue());
+    buffer.putInt(start, length);
+    current.dirty = true;
+  }
+
+  /**
+   * Write a long the same way as the two's complement bytes of {@link BigInteger#toByteArray()}.
+   */
+  private static void putUnits(ByteBuffer buffer, int scale, long value) {
+    int length = byteLength(value);
+    buffer.putInt(scale).putShort((short) length);
+    for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+      buffer.put((byte) (value >> shift));
+    }
+  }
+
+  private static int byteLength(long value) {
+    return (64 - Long.numberOfLeadingZeros(value < 0 ? ~value : value)) / 8 + 1;
+  }
+
+  /**
+   * Write a string as UTF-8 prefixed by its length, matching {@link String#getBytes(java.nio.charset.Charset)}.
+   */
+  private static void putString(ByteBuffer buffer, String value) {
+    buffer.putShort((short) utf8Length(value));
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, value.charAt(++i));
+          buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+            .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+        } else {
+          buffer.put((byte) '?');
+        }
+      } else {
+        buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+      }
+    }
+  }
+
+  private static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+          length += 4;
+          i++;
+        } else {
+          length++;
+        }
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Seal the active segment so that any changes recorded from now on end up in a new segment.
+   * @return the last sealed segment, to be saved along with the flushed changes and then passed to {@link #release(Checkpoint)}
+   */
+  public synchronized Checkpoint checkpoint() {
+    if (segment != null && segment.buffer.position() > 0) {
+      closeSegment();
+      segmentId++;
+    }
+    return new Checkpoint(id, segmentId - 1);
+  }
+
+  /**
+   * Delete all segments up to and including the specified checkpoint.
+   * @param checkpoint the checkpoint returned by {@link #checkpoint()}
+   */
+  public synchronized void release(Checkpoint checkpoint) {
+    if (checkpoint.segment() < firstSegmentId) {
+      return;
+    }
+    for (var entry : listSegments().subMap(firstSegmentId, true, checkpoint.segment(), true).entrySet()) {
+      try {
+        Files.deleteIfExists(entry.getValue());
+      } catch (IOException e) {
+        parent.logger().warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Force any pending journal writes to disk, including segments sealed since the last sync.
+   * Disk I/O happens outside the journal monitor so appending threads are never blocked by it.
+   */
+  public void sync() {
+    List<Segment> toForce;
+    synchronized (this) {
+      toForce = new ArrayList<>(sealed);
+      sealed.clear();
+      if (segment != null && segment.dirty) {
+        segment.dirty = false;
+        toForce.add(segment);
+      }
+    }
+    for (Segment s : toForce) {
+      try {
+        s.buffer.force();
+      } catch (Exception e) {
+        parent.logger().warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (this) {
+      closeSegment();
+    }
+    sync();
+  }
+
+  private Segment activeSegment(int length) throws IOException {
+    if (segment != null && segment.buffer.remaining() < HEADER_SIZE + length + 4) {
+      closeSegment();
+      segmentId++;
+    }
+    if (segment == null) {
+      Path path = directory.resolve(SEGMENT_PREFIX + segmentId + SEGMENT_SUFFIX);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        segment = new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, HEADER_SIZE + length + 4)));
+      }
+    }
+    return segment;
+  }
+
+  /**
+   * Seal the active segment, it is forced to disk by the next {@link #sync()}.
+   */
+  private void closeSegment() {
+    if (segment != null) {
+      if (segment.dirty) {
+        segment.dirty = false;
+        sealed.add(segment);
+      }
+      segment = null;
+    }
+  }
+
+  private NavigableMap<Long, Path> listSegments() {
+    NavigableMap<Long, Path> result = new TreeMap<>();
+    try (Stream<Path> stream = Files.list(directory)) {
+      stream.forEach(path -> {
+        String fileName = path.getFileName().toString();
+        if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            long id = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+            result.put(id, path);
+          } catch (NumberFormatException ignore) {
+          }
+        }
+      });
+    } catch (IOException e) {
+      parent.logger().warn(e.getMessage(), e);
+    }
+    return result;
+  }
+
+  private void readSegment(Path path, Map<UUID, RecoveredProfile> recovered) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      CRC32 checksum = new CRC32();
+      while (buffer.remaining() >= HEADER_SIZE) {
+        int length = buffer.getInt();
+        int expected = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+          break;
+        }
+        ByteBuffer payload = buffer.slice(buffer.position(), length);
+        checksum.reset();
+        checksum.update(payload.duplicate());
+        if ((int) checksum.getValue() != expected) {
+          parent.logger().warn("Found corrupted journal record in " + path.getFileName() + ", ignoring the rest of the segment.");
+          break;
+        }
+        buffer.position(buffer.position() + length);
+        UUID uuid = new UUID(payload.getLong(), payload.getLong());
+        String name = readString(payload);
+        String id = readString(payload);
+        BigDecimal amount = readDecimal(payload);
+        BigDecimal delta = readDecimal(payload);
+        // Keep the latest absolute value and the sum of all deltas
+        RecoveredProfile profile = recovered.computeIfAbsent(uuid, u -> new RecoveredProfile(name, new HashMap<>(), new HashMap<>()));
+        profile.balance.put(id, amount);
+        profile.delta.merge(id, delta, BigDecimal::add);
+      }
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static BigDecimal readDecimal(ByteBuffer buffer) {
+    int scale = buffer.getInt();
+    byte[] unscaled = new byte[buffer.getShort()];
+    buffer.get(unscaled);
+    return new BigDecimal(new BigInteger(unscaled), scale);
+  }
+
+  private static final class Segment {
+    private final MappedByteBuffer buffer;
+    private volatile boolean dirty;
+
+    private Segment(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * A position in the journal, all changes recorded up to it are covered by a single flush.
+   * @param journal the id of the journal
+   * @param segment the id of the last sealed segment
+   */
+  public record Checkpoint(String journal, long segment) {
+  }
+
+  private record RecoveredProfile(String name, Map<String, BigDecimal> balance, Map<String, BigDecimal> delta) {
+  }
+
+  @ConfigSerializable
+  private static final class Config {
+    private final boolean enabled = true;
+    private final int segmentSizeKB = 4096;
+    private final long syncIntervalTicks = 20;
+  }
+}
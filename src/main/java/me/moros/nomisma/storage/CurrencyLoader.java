@@ -71,7 +71,7 @@ public class CurrencyLoader {
   }
 
   public CompletableFuture<?> loadAllCurrencies() {
-    return parent.executor().async().submit(() -> {
+    return CompletableFuture.runAsync(() -> {
       try (Stream<Path> stream = Files.walk(currencyDir, 1)) {
         Collection<Currency> currencies = stream.filter(this::isJson).map(this::loadCurrency)
           .filter(Objects::nonNull).toList();
@@ -79,7 +79,7 @@ public class CurrencyLoader {
       } catch (IOException e) {
         e.printStackTrace();
       }
-    });
+    }, parent.ioExecutor());
   }
 
   private @Nullable Currency loadCurrency(Path path) {
@@ -97,7 +97,7 @@ public class CurrencyLoader {
   }
 
   private CompletableFuture<Boolean> saveCurrency(String name, Currency currency) {
-    return parent.executor().async().submit(() -> {
+    return CompletableFuture.supplyAsync(() -> {
       Path path = Paths.get(currencyDir.toString(), name + CURRENCY_SUFFIX);
       try (OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(path.toFile()), StandardCharsets.UTF_8)) {
         gson.toJson(new CurrencyData(currency), writer);
@@ -106,7 +106,7 @@ public class CurrencyLoader {
       } catch (IOException ignore) {
       }
       return false;
-    }).exceptionally(e -> {
+    }, parent.ioExecutor()).exceptionally(e -> {
       e.printStackTrace();
       return false;
     });
@@ -19,14 +19,14 @@
 
 package me.moros.nomisma.storage;
 
-import java.math.BigDecimal;
 import java.util.Collection;
-import java.util.Map;
 import java.util.UUID;
 
 import me.moros.nomisma.model.Currency;
 import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
 import me.moros.nomisma.model.User;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public interface EconomyStorage {
@@ -34,17 +34,64 @@ public interface EconomyStorage {
 
   User createProfile(UUID uuid, String name);
 
+  /**
+   * Load a profile or create it if missing, without marking it as seen.
+   * Unlike {@link #createProfile(UUID, String)} this keeps the stored name and last seen time of existing accounts.
+   */
+  User loadOrCreateProfile(UUID uuid, String name);
+
   @Nullable User loadProfile(UUID uuid);
 
   @Nullable User loadProfile(String name);
 
   Collection<User> loadAllProfiles();
 
-  void saveProfileAsync(User user);
+  /**
+   * Stream the identity of all stored accounts without loading their balances.
+   * Always reads from the primary database, never from the read pool.
+   * @param visitor the visitor to accept each account
+   * @return true if all accounts were visited successfully, false otherwise
+   */
+  boolean forEachAccount(AccountVisitor visitor);
+
+  /**
+   * Save multiple profiles in a single transaction.
+   * @param snapshots the changes to save
+   * @return true if all profiles were saved successfully, false otherwise
+   */
+  default boolean saveProfiles(Collection<ProfileSnapshot> snapshots) {
+    return saveProfiles(snapshots, null);
+  }
 
-  boolean saveProfile(User user, Map<Currency, BigDecimal> balance);
+  /**
+   * Save multiple profiles and record the journal checkpoint they cover in a single transaction.
+   * @param snapshots the changes to save
+   * @param checkpoint the journal checkpoint that is committed along with the changes
+   * @return true if all profiles were saved successfully, false otherwise
+   * @see #committedSegment(String)
+   */
+  boolean saveProfiles(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint);
+
+  /**
+   * Query the last journal segment whose changes were committed to storage.
+   * @param journal the journal id
+   * @return the id of the last committed segment or -1 if there is none
+   * @throws RuntimeException if the query fails
+   */
+  long committedSegment(String journal);
 
   LeaderboardResult topBalances(Currency currency, int offset, int limit);
 
-  boolean createColumn(Currency currency);
+  /**
+   * Create storage for any of the given currencies that are missing, using as few schema changes as possible.
+   * This also maintains the leaderboard indexes of all currencies.
+   * @param currencies the currencies to create storage for
+   * @return true if the schema was changed, false otherwise
+   */
+  boolean createColumns(Collection<Currency> currencies);
+
+  @FunctionalInterface
+  interface AccountVisitor {
+    void visit(String name, UUID uuid, long lastSeen);
+  }
 }
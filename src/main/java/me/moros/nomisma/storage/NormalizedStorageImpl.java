@@ -0,0 +1,231 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.storage;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.model.Currency;
+import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
+import me.moros.nomisma.model.User;
+import me.moros.nomisma.registry.Registries;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
+import me.moros.nomisma.storage.sql.SqlQueries;
+import me.moros.storage.StorageDataSource;
+import me.moros.storage.StorageType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.statement.PreparedBatch;
+import org.jdbi.v3.core.statement.Query;
+import org.jdbi.v3.core.statement.StatementContext;
+
+/**
+ * Storage implementation that keeps balances in a separate table with one row per player and currency.
+ * Only touched currencies are written and registering a new currency requires no schema changes.
+ */
+public final class NormalizedStorageImpl extends AbstractStorage {
+  private final String upsertBalance;
+
+  NormalizedStorageImpl(Nomisma parent, StorageDataSource dataSource, @Nullable StorageDataSource readSource,
+                        int batchSize, int fetchSize, boolean deltaUpdates) {
+    super(parent, dataSource, readSource, batchSize, fetchSize, deltaUpdates);
+    StorageType type = dataSource.type();
+    this.upsertBalance = deltaUpdates ? SqlQueries.incrementBalance(type) : SqlQueries.upsertBalance(type);
+  }
+
+  @Override
+  boolean init(Function<String, InputStream> resourceProvider) {
+    String type = dataSource.type().realName();
+    if (!tableExists("nomisma_players") && !executeScript(resourceProvider, type)) {
+      return false;
+    }
+    upgradeNameColumns();
+    if (!tableExists("nomisma_balances")) {
+      if (!executeScript(resourceProvider, type + "_balances")) {
+        return false;
+      }
+      if (!convertColumns()) {
+        // The table only exists once converted, so a failed conversion is retried on next startup
+        dropBalanceTable();
+        return false;
+      }
+    }
+    return createJournalTable();
+  }
+
+  /**
+   * One-shot conversion of balances stored in per currency columns of the players table.
+   * The original columns are left untouched.
+   * @return true if all balances were converted, false otherwise
+   */
+  private boolean convertColumns() {
+    Collection<String> currencyColumns = columns("nomisma_players").stream()
+      .filter(c -> !c.startsWith("player_") && !c.equals("last_seen")).toList();
+    if (currencyColumns.isEmpty()) {
+      return true;
+    }
+    try {
+      DB.useTransaction(handle -> {
+        for (String column : currencyColumns) {
+          int rows = handle.createUpdate(SqlQueries.convertColumn(column)).execute();
+          parent.logger().info("Converted " + rows + " " + column + " balances to the normalized balance table.");
+        }
+      });
+      return true;
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return false;
+  }
+
+  private void dropBalanceTable() {
+    try {
+      DB.useHandle(handle -> handle.createUpdate(SqlQueries.BALANCE_DROP_TABLE.query()).execute());
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+  }
+
+  private BalanceRow balanceRowMapper(ResultSet rs, StatementContext ctx) throws SQLException {
+    return new BalanceRow(rs.getObject("player_uuid", UUID.class), rs.getString("currency"), rs.getBigDecimal("amount"));
+  }
+
+  private AccountRow accountRowMapper(ResultSet rs, StatementContext ctx) throws SQLException {
+    Account account = accountMapper(rs, ctx);
+    return new AccountRow(account, rs.getString("currency") == null ? null : balanceRowMapper(rs, ctx));
+  }
+
+  private Map<Currency, BigDecimal> loadBalance(Handle handle, UUID uuid) {
+    Map<Currency, BigDecimal> balance = new HashMap<>();
+    handle.createQuery(SqlQueries.BALANCE_SELECT_BY_UUID.query()).bind(0, uuid).map(this::balanceRowMapper)
+      .forEach(row -> row.put(balance));
+    return balance;
+  }
+
+  @Override
+  protected User mapProfile(Handle handle, Query query) {
+    Account account = query.map(this::accountMapper).one();
+    return new User(account.uuid(), account.name(), loadBalance(handle, account.uuid()));
+  }
+
+  @Override
+  public @Nullable User loadProfile(UUID uuid) {
+    try {
+      User temp = DB.withHandle(handle -> {
+        Account account = handle.createQuery(SqlQueries.PLAYER_SELECT_BY_UUID.query()).bind(0, uuid)
+          .map(this::accountMapper).findOne().orElse(null);
+        return account == null ? null : new User(account.uuid(), account.name(), loadBalance(handle, account.uuid()));
+      });
+      if (temp != null && uuid.equals(temp.uuid())) {
+        return temp;
+      }
+    } catch (Exception e) {
+      parent.logger().error(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  @Override
+  public Collection<User> loadAllProfiles() {
+    Map<Account, Map<Currency, BigDecimal>> balances = new LinkedHashMap<>();
+    boolean success = forEachRow(readDB, SqlQueries.PLAYER_BALANCE_SELECT_ALL.query(), (rs, ctx) -> {
+      AccountRow row = accountRowMapper(rs, ctx);
+      Map<Currency, BigDecimal> balance = balances.computeIfAbsent(row.account(), a -> new HashMap<>());
+      if (row.balance() != null) {
+        row.balance().put(balance);
+      }
+    });
+    if (!success) {
+      return List.of();
+    }
+    return balances.entrySet().stream().map(e -> new User(e.getKey().uuid(), e.getKey().name(), e.getValue())).toList();
+  }
+
+  @Override
+  public boolean saveProfiles(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint) {
+    List<ProfileSnapshot> renamed = snapshots.stream().filter(s -> s.name() != null).toList();
+    List<BalanceRow> rows = new ArrayList<>();
+    for (ProfileSnapshot snapshot : snapshots) {
+      UUID uuid = snapshot.user().uuid();
+      changes(snapshot).forEach((c, v) -> rows.add(new BalanceRow(uuid, c.identifier(), v)));
+    }
+    if (renamed.isEmpty() && rows.isEmpty() && checkpoint == null) {
+      return true;
+    }
+    return saveInTransaction(snapshots, checkpoint, handle -> {
+      for (int i = 0; i < renamed.size(); i += batchSize) {
+        PreparedBatch batch = handle.prepareBatch(SqlQueries.PLAYER_UPDATE_NAME.query());
+        for (ProfileSnapshot snapshot : renamed.subList(i, Math.min(i + batchSize, renamed.size()))) {
+          batch.bind("player_name", snapshot.name()).bind("player_name_lower", snapshot.name().toLowerCase(Locale.ROOT))
+            .bind("player_uuid", snapshot.user().uuid()).add();
+        }
+        batch.execute();
+      }
+      for (int i = 0; i < rows.size(); i += batchSize) {
+        PreparedBatch batch = handle.prepareBatch(upsertBalance);
+        for (BalanceRow row : rows.subList(i, Math.min(i + batchSize, rows.size()))) {
+          batch.bind("player_uuid", row.uuid()).bind("currency", row.currency()).bind("amount", row.amount()).add();
+        }
+        batch.execute();
+      }
+    });
+  }
+
+  @Override
+  protected void readBalances(Handle handle, List<UUID> uuids, Map<UUID, Map<Currency, BigDecimal>> result) {
+    handle.createQuery(SqlQueries.BALANCE_SELECT_BY_UUIDS.query()).bindList("uuids", uuids).map(this::balanceRowMapper)
+      .forEach(row -> row.put(result.computeIfAbsent(row.uuid(), u -> new HashMap<>())));
+  }
+
+  @Override
+  public LeaderboardResult topBalances(Currency currency, int offset, int limit) {
+    return topBalances(SqlQueries.selectTopBalances(currency), offset, limit);
+  }
+
+  @Override
+  public boolean createColumns(Collection<Currency> currencies) {
+    return false; // Currencies are stored as rows, no schema changes required
+  }
+
+  private record AccountRow(Account account, @Nullable BalanceRow balance) {
+  }
+
+  private record BalanceRow(UUID uuid, String currency, BigDecimal amount) {
+    private void put(Map<Currency, BigDecimal> balance) {
+      Currency c = Registries.CURRENCIES.currency(currency);
+      if (c != null) {
+        balance.put(c, amount);
+      }
+    }
+  }
+}
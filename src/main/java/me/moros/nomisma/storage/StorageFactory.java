@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import me.moros.nomisma.Nomisma;
+import me.moros.nomisma.util.IOExecutors;
 import me.moros.storage.Builder;
 import me.moros.storage.StorageDataSource;
 import me.moros.storage.StorageType;
@@ -34,7 +36,9 @@ import org.spongepowered.configurate.objectmapping.ConfigSerializable;
 /**
  * Factory class that constructs and returns a Hikari-based database storage.
  * @see EconomyStorage
+ * @see AsyncEconomyStorage
  * @see StorageImpl
+ * @see NormalizedStorageImpl
  */
 public final class StorageFactory {
   private StorageFactory() {
@@ -42,15 +46,8 @@ public final class StorageFactory {
 
   public static @Nullable EconomyStorage createInstance(Nomisma plugin) {
     Config config = plugin.configManager().config(List.of("storage"), new Config());
-    Builder builder = StorageDataSource.builder(config.type).database(config.database)
-      .host(config.host).port(config.port).username(config.username).password(config.password);
-    builder.configure(c -> {
-      c.setMaximumPoolSize(config.poolSettings.maximumPoolSize);
-      c.setMinimumIdle(config.poolSettings.minimumIdle);
-      c.setMaxLifetime(config.poolSettings.maxLifetime);
-      c.setKeepaliveTime(config.poolSettings.keepAliveTime);
-      c.setConnectionTimeout(config.poolSettings.connectionTimeout);
-    });
+    Builder builder = builder(config.type, config.host, config.port, config.username, config.password,
+      config.database, config.poolSettings);
     if (config.type.isLocal()) {
       switch (config.type) {
         case HSQL -> builder.properties(p -> {
@@ -75,13 +72,74 @@ public final class StorageFactory {
     }
     StorageDataSource data = builder.build("nomisma-hikari");
     if (data != null) {
-      var storage = new StorageImpl(plugin, data);
-      storage.init(plugin::getResource);
+      StorageDataSource readData = null;
+      if (config.read.enabled && !config.type.isLocal()) {
+        ReadSettings read = config.read;
+        readData = builder(config.type, read.host, read.port, read.username, read.password, config.database, read.poolSettings)
+          .build("nomisma-hikari-read");
+        if (readData == null) {
+          plugin.logger().warn("Unable to connect to read replica, using the primary database for reads.");
+        }
+      }
+      int batchSize = Math.max(1, config.batchSize);
+      int fetchSize = Math.max(1, config.fetchSize);
+      AbstractStorage storage;
+      if (config.normalizedBalances) {
+        storage = new NormalizedStorageImpl(plugin, data, readData, batchSize, fetchSize, config.deltaUpdates);
+      } else {
+        storage = new StorageImpl(plugin, data, readData, batchSize, fetchSize, config.deltaUpdates);
+      }
+      if (!storage.init(plugin::getResource)) {
+        plugin.logger().error("Unable to initialize the database schema.");
+        storage.close();
+        return null;
+      }
       return storage;
     }
     return null;
   }
 
+  public static AsyncEconomyStorage createAsync(Nomisma plugin, EconomyStorage storage) {
+    Config config = plugin.configManager().config(List.of("storage"), new Config());
+    IOSettings io = config.io;
+    ExecutorService executor = io.virtualThreads ? IOExecutors.virtual() : null;
+    if (io.virtualThreads && executor == null) {
+      plugin.logger().warn("Virtual threads require Java 21, falling back to platform threads.");
+    }
+    if (executor == null) {
+      executor = IOExecutors.platform("nomisma-io", Math.max(1, io.threads));
+    }
+    int permits = Math.max(1, config.poolSettings.maximumPoolSize);
+    return new AsyncStorage(plugin, storage, executor, permits, Math.max(1, io.queueSize), Math.max(1, io.timeoutMillis));
+  }
+
+  private static Builder builder(StorageType type, String host, int port, String username, String password,
+                                 String database, PoolSettings poolSettings) {
+    Builder builder = StorageDataSource.builder(type).database(database)
+      .host(host).port(port).username(username).password(password);
+    builder.configure(c -> {
+      c.setMaximumPoolSize(poolSettings.maximumPoolSize);
+      c.setMinimumIdle(poolSettings.minimumIdle);
+      c.setMaxLifetime(poolSettings.maxLifetime);
+      c.setKeepaliveTime(poolSettings.keepAliveTime);
+      c.setConnectionTimeout(poolSettings.connectionTimeout);
+      int cacheSize = poolSettings.statementCacheSize;
+      switch (type) {
+        case MARIADB, MYSQL -> {
+          // Both types use the bundled MariaDB driver, which streams result sets when a fetch size is set
+          c.addDataSourceProperty("cachePrepStmts", cacheSize > 0);
+          c.addDataSourceProperty("prepStmtCacheSize", cacheSize);
+          c.addDataSourceProperty("useServerPrepStmts", cacheSize > 0);
+        }
+        case POSTGRESQL -> {
+          c.addDataSourceProperty("prepareThreshold", cacheSize > 0 ? 1 : 0);
+          c.addDataSourceProperty("preparedStatementCacheQueries", cacheSize);
+        }
+      }
+    });
+    return builder;
+  }
+
   @ConfigSerializable
   private static final class Config {
     private final StorageType type = StorageType.H2;
@@ -90,6 +148,30 @@ public final class StorageFactory {
     private final String username = "nomisma";
     private final String password = "password";
     private final String database = "nomisma";
+    private final int batchSize = 500;
+    private final int fetchSize = 1000;
+    private final boolean normalizedBalances = false;
+    private final boolean deltaUpdates = false;
+    private final PoolSettings poolSettings = new PoolSettings();
+    private final ReadSettings read = new ReadSettings();
+    private final IOSettings io = new IOSettings();
+  }
+
+  @ConfigSerializable
+  private static final class IOSettings {
+    private final boolean virtualThreads = false;
+    private final int threads = 4;
+    private final int queueSize = 1024;
+    private final long timeoutMillis = 5000;
+  }
+
+  @ConfigSerializable
+  private static final class ReadSettings {
+    private final boolean enabled = false;
+    private final String host = "localhost";
+    private final int port = 3306;
+    private final String username = "nomisma";
+    private final String password = "password";
     private final PoolSettings poolSettings = new PoolSettings();
   }
 
@@ -100,5 +182,6 @@ public final class StorageFactory {
     private final int maxLifetime = 1_800_000;
     private final int keepAliveTime = 0;
     private final int connectionTimeout = 5000;
+    private final int statementCacheSize = 250;
   }
 }
@@ -21,85 +21,51 @@ package me.moros.nomisma.storage;
 
 import java.io.InputStream;
 import java.math.BigDecimal;
-import java.nio.ByteBuffer;
-import java.nio.file.Path;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import me.moros.nomisma.Nomisma;
 import me.moros.nomisma.model.Currency;
-import me.moros.nomisma.model.Leaderboard.LeaderboardEntry;
 import me.moros.nomisma.model.Leaderboard.LeaderboardResult;
+import me.moros.nomisma.model.ProfileSnapshot;
 import me.moros.nomisma.model.User;
 import me.moros.nomisma.registry.Registries;
+import me.moros.nomisma.storage.BalanceJournal.Checkpoint;
 import me.moros.nomisma.storage.sql.SqlQueries;
-import me.moros.storage.SqlStreamReader;
 import me.moros.storage.StorageDataSource;
+import me.moros.storage.StorageType;
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.jdbi.v3.core.Jdbi;
-import org.jdbi.v3.core.argument.AbstractArgumentFactory;
-import org.jdbi.v3.core.argument.Argument;
-import org.jdbi.v3.core.config.ConfigRegistry;
-import org.jdbi.v3.core.statement.Batch;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.statement.PreparedBatch;
+import org.jdbi.v3.core.statement.Query;
 import org.jdbi.v3.core.statement.StatementContext;
 
-public final class StorageImpl implements EconomyStorage {
-  private final Nomisma parent;
-  private final StorageDataSource dataSource;
-  private final Jdbi DB;
-
-  StorageImpl(Nomisma parent, StorageDataSource dataSource) {
-    this.parent = parent;
-    this.dataSource = dataSource;
-    DB = Jdbi.create(this.dataSource.source());
-    if (!nativeUuid()) {
-      DB.registerArgument(new UUIDArgumentFactory());
-    }
-  }
-
-  boolean init(Function<String, InputStream> resourceProvider) {
-    if (!tableExists("nomisma_players")) {
-      Collection<String> statements;
-      String path = Path.of("schema", dataSource.type().realName() + ".sql").toString();
-      try (InputStream stream = resourceProvider.apply(path)) {
-        statements = SqlStreamReader.parseQueries(stream);
-      } catch (Exception e) {
-        return false;
-      }
-      DB.useHandle(handle -> {
-        Batch batch = handle.createBatch();
-        statements.forEach(batch::add);
-        batch.execute();
-      });
-    }
-    return true;
-  }
-
-  @Override
-  public void close() {
-    dataSource.source().close();
+/**
+ * Storage implementation that keeps balances in one column per currency in the players table.
+ */
+public final class StorageImpl extends AbstractStorage {
+  StorageImpl(Nomisma parent, StorageDataSource dataSource, @Nullable StorageDataSource readSource,
+              int batchSize, int fetchSize, boolean deltaUpdates) {
+    super(parent, dataSource, readSource, batchSize, fetchSize, deltaUpdates);
   }
 
   @Override
-  public User createProfile(UUID uuid, String name) {
-    User profile = loadProfile(uuid);
-    if (profile == null) {
-      profile = DB.withHandle(handle -> {
-        handle.createUpdate(SqlQueries.PLAYER_INSERT.query())
-          .bind(0, uuid).bind(1, name).execute();
-        return new User(uuid, name);
-      });
+  boolean init(Function<String, InputStream> resourceProvider) {
+    if (!tableExists("nomisma_players") && !executeScript(resourceProvider, dataSource.type().realName())) {
+      return false;
     }
-    return profile;
+    upgradeNameColumns();
+    return createJournalTable();
   }
 
   private User profileRowMapper(ResultSet rs, StatementContext ctx) throws SQLException {
@@ -113,6 +79,11 @@ public final class StorageImpl implements EconomyStorage {
     return new User(uuid, name, balance);
   }
 
+  @Override
+  protected User mapProfile(Handle handle, Query query) {
+    return query.map(this::profileRowMapper).one();
+  }
+
   @Override
   public @Nullable User loadProfile(UUID uuid) {
     try {
@@ -129,117 +100,115 @@ public final class StorageImpl implements EconomyStorage {
     return null;
   }
 
-  @Override
-  public @Nullable User loadProfile(String name) {
-    try {
-      User temp = DB.withHandle(handle ->
-        handle.createQuery(SqlQueries.PLAYER_SELECT_BY_NAME.query())
-          .bind(0, name).map(this::profileRowMapper).findOne().orElse(null)
-      );
-      if (temp != null && name.equalsIgnoreCase(temp.name())) {
-        return temp;
-      }
-    } catch (Exception e) {
-      parent.logger().error(e.getMessage(), e);
-    }
-    return null;
-  }
-
   @Override
   public Collection<User> loadAllProfiles() {
-    try {
-      return DB.withHandle(handle ->
-        handle.createQuery(SqlQueries.PLAYER_SELECT_ALL.query()).map(this::profileRowMapper).stream().toList()
-      );
-    } catch (Exception e) {
-      parent.logger().error(e.getMessage(), e);
-    }
-    return List.of();
-  }
-
-  @Override
-  public void saveProfileAsync(User user) {
-    Map<Currency, BigDecimal> snapshot = user.balanceSnapshot();
-    parent.executor().async().submit(() -> saveProfile(user, snapshot));
+    List<User> profiles = new ArrayList<>();
+    return forEachRow(readDB, SqlQueries.PLAYER_SELECT_ALL.query(), (rs, ctx) -> profiles.add(profileRowMapper(rs, ctx))) ? profiles : List.of();
   }
 
   @Override
-  public boolean saveProfile(User user, Map<Currency, BigDecimal> balance) {
-    try {
-      var map = balance.entrySet().stream()
-        .collect(Collectors.toMap(e -> e.getKey().identifier(), Entry::getValue));
-      String query = SqlQueries.updateProfile(map.keySet());
-      DB.useHandle(handle -> handle.createUpdate(query).bind("player_name", user.name())
-        .bind("player_uuid", user.uuid()).bindMap(map).execute());
+  public boolean saveProfiles(Collection<ProfileSnapshot> snapshots, @Nullable Checkpoint checkpoint) {
+    // Group rows by their column set so each group can share a single prepared statement
+    Map<Set<String>, List<ProfileRow>> groups = snapshots.stream().filter(s -> !s.isEmpty())
+      .map(s -> new ProfileRow(s.user(), columnMap(s)))
+      .collect(Collectors.groupingBy(r -> r.columns().keySet()));
+    if (groups.isEmpty() && checkpoint == null) {
       return true;
-    } catch (Exception e) {
-      parent.logger().error(e.getMessage(), e);
     }
-    return false;
+    return saveInTransaction(snapshots, checkpoint, handle -> {
+      for (var group : groups.entrySet()) {
+        Set<String> columns = group.getKey();
+        String query = deltaUpdates ? SqlQueries.incrementProfile(columns) : SqlQueries.updateProfile(columns);
+        List<ProfileRow> rows = group.getValue();
+        for (int i = 0; i < rows.size(); i += batchSize) {
+          PreparedBatch batch = handle.prepareBatch(query);
+          for (ProfileRow row : rows.subList(i, Math.min(i + batchSize, rows.size()))) {
+            batch.bind("player_uuid", row.user().uuid()).bindMap(row.columns()).add();
+          }
+          batch.execute();
+        }
+      }
+    });
   }
 
   @Override
-  public LeaderboardResult topBalances(Currency currency, int offset, int limit) {
-    try {
-      String query = SqlQueries.selectTop(currency, offset, limit);
-      return new LeaderboardResult(DB.withHandle(handle -> handle.createQuery(query).map(this::leaderboardMapper).list()));
-    } catch (Exception e) {
-      parent.logger().error(e.getMessage(), e);
-    }
-    return new LeaderboardResult(List.of());
+  protected void readBalances(Handle handle, List<UUID> uuids, Map<UUID, Map<Currency, BigDecimal>> result) {
+    handle.createQuery(SqlQueries.PLAYER_SELECT_BY_UUIDS.query()).bindList("uuids", uuids)
+      .map(this::profileRowMapper).forEach(u -> result.put(u.uuid(), u.balanceSnapshot()));
   }
 
-  private LeaderboardEntry leaderboardMapper(ResultSet rs, StatementContext ctx) throws SQLException {
-    return new LeaderboardEntry(rs.getString("player_name"), rs.getBigDecimal("balance"));
+  @Override
+  public LeaderboardResult topBalances(Currency currency, int offset, int limit) {
+    return topBalances(SqlQueries.selectTop(currency), offset, limit);
   }
 
   @Override
-  public boolean createColumn(Currency currency) {
-    try {
-      boolean exists = DB.withHandle(handle -> handle.queryMetadata(d -> d.getColumns(null, null, "%", null))
-        .map(x -> x.getColumn("COLUMN_NAME", String.class)).stream().anyMatch(currency.identifier()::equalsIgnoreCase)
-      );
-      if (!exists) {
-        DB.withHandle(handle -> handle.createUpdate(SqlQueries.addColumn(currency)).execute());
-        return true;
+  public boolean createColumns(Collection<Currency> currencies) {
+    Collection<String> existing = columns("nomisma_players");
+    List<Currency> missing = currencies.stream()
+      .filter(c -> !existing.contains(c.identifier().toLowerCase(Locale.ROOT))).toList();
+    boolean changed = false;
+    if (!missing.isEmpty()) {
+      StorageType type = dataSource.type();
+      // Try an in-place metadata change first, older MySQL and MariaDB versions reject ALGORITHM=INSTANT
+      boolean instant = (type == StorageType.MARIADB || type == StorageType.MYSQL) && addColumns(missing, true);
+      if (instant || addColumns(missing, false)) {
+        parent.logger().info("Added " + missing.size() + " currency column(s) to the players table.");
+        changed = true;
+      }
+    }
+    return updateIndexes(currencies) || changed;
+  }
+
+  /**
+   * Create a leaderboard index for every currency and drop indexes of currencies that no longer exist.
+   */
+  private boolean updateIndexes(Collection<Currency> currencies) {
+    Collection<String> existing = indexes("nomisma_players");
+    Set<String> expected = currencies.stream().map(SqlQueries::topIndexName).collect(Collectors.toSet());
+    StorageType type = dataSource.type();
+    int created = 0;
+    int dropped = 0;
+    try (Handle handle = DB.open()) {
+      for (Currency currency : currencies) {
+        if (!existing.contains(SqlQueries.topIndexName(currency))) {
+          handle.createUpdate(SqlQueries.createTopIndex(type, currency)).execute();
+          created++;
+        }
+      }
+      for (String index : existing) {
+        if (index.startsWith(SqlQueries.TOP_INDEX_PREFIX) && !expected.contains(index)) {
+          handle.createUpdate(SqlQueries.dropIndex(type, index)).execute();
+          dropped++;
+        }
       }
     } catch (Exception e) {
       parent.logger().warn(e.getMessage(), e);
     }
+    if (created > 0 || dropped > 0) {
+      parent.logger().info("Created " + created + " and dropped " + dropped + " leaderboard index(es).");
+      return true;
+    }
     return false;
   }
 
-  private boolean tableExists(String table) {
+  private boolean addColumns(Collection<Currency> currencies, boolean instant) {
     try {
-      return DB.withHandle(handle -> {
-        String catalog = handle.getConnection().getCatalog();
-        return handle.queryMetadata(d -> d.getTables(catalog, null, "%", null))
-          .map(x -> x.getColumn("TABLE_NAME", String.class)).stream().anyMatch(table::equalsIgnoreCase);
+      DB.useHandle(handle -> {
+        List<String> columns = currencies.stream().map(SqlQueries::currencyColumn).toList();
+        for (String query : SqlQueries.addColumns(dataSource.type(), columns, instant)) {
+          handle.createUpdate(query).execute();
+        }
       });
+      return true;
     } catch (Exception e) {
-      parent.logger().warn(e.getMessage(), e);
+      if (!instant) {
+        parent.logger().warn(e.getMessage(), e);
+      }
     }
     return false;
   }
 
-  private boolean nativeUuid() {
-    return switch (dataSource.type()) {
-      case POSTGRESQL, H2, HSQL -> true;
-      default -> false;
-    };
-  }
-
-  private static final class UUIDArgumentFactory extends AbstractArgumentFactory<UUID> {
-    private UUIDArgumentFactory() {
-      super(Types.BINARY);
-    }
-
-    @Override
-    protected Argument build(UUID value, ConfigRegistry config) {
-      ByteBuffer buffer = ByteBuffer.wrap(new byte[16]);
-      buffer.putLong(value.getMostSignificantBits());
-      buffer.putLong(value.getLeastSignificantBits());
-      return (position, statement, ctx) -> statement.setBytes(position, buffer.array());
-    }
+  private record ProfileRow(User user, Map<String, Object> columns) {
   }
 }
@@ -20,14 +20,49 @@
 package me.moros.nomisma.storage.sql;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import me.moros.nomisma.model.Currency;
+import me.moros.storage.StorageType;
 
 public enum SqlQueries {
-  PLAYER_INSERT("INSERT INTO nomisma_players (player_uuid, player_name) VALUES(?, ?)"),
   PLAYER_SELECT_BY_UUID("SELECT * FROM nomisma_players WHERE player_uuid=? LIMIT 1"),
-  PLAYER_SELECT_BY_NAME("SELECT * FROM nomisma_players WHERE player_name=? LIMIT 1"),
-  PLAYER_SELECT_ALL("SELECT * FROM nomisma_players");
+  PLAYER_SELECT_UUID_BY_NAME("SELECT player_uuid FROM nomisma_players WHERE player_name_lower=? ORDER BY last_seen DESC LIMIT 1"),
+  PLAYER_SELECT_ALL("SELECT * FROM nomisma_players"),
+  PLAYER_SELECT_ACCOUNTS("SELECT player_uuid, player_name, last_seen FROM nomisma_players"),
+  PLAYER_SELECT_BY_UUIDS("SELECT * FROM nomisma_players WHERE player_uuid IN (<uuids>)"),
+  PLAYER_INSERT("INSERT INTO nomisma_players (player_uuid, player_name, player_name_lower, last_seen) VALUES(:player_uuid, :player_name, :player_name_lower, :last_seen)"),
+  PLAYER_UPDATE_NAME("UPDATE nomisma_players SET player_name = :player_name, player_name_lower = :player_name_lower WHERE player_uuid = :player_uuid"),
+  PLAYER_FILL_NAME_LOWER("UPDATE nomisma_players SET player_name_lower = LOWER(player_name) WHERE player_name_lower IS NULL OR player_name_lower = ''"),
+  PLAYER_CREATE_NAME_INDEX("CREATE INDEX player_name_lower_index ON nomisma_players (player_name_lower, last_seen DESC)"),
+
+  BALANCE_DROP_TABLE("DROP TABLE nomisma_balances"),
+  BALANCE_SELECT_BY_UUID("SELECT player_uuid, currency, amount FROM nomisma_balances WHERE player_uuid=?"),
+  BALANCE_SELECT_BY_UUIDS("SELECT player_uuid, currency, amount FROM nomisma_balances WHERE player_uuid IN (<uuids>)"),
+  PLAYER_BALANCE_SELECT_ALL("SELECT p.player_uuid, p.player_name, b.currency, b.amount FROM nomisma_players p"
+    + " LEFT JOIN nomisma_balances b ON b.player_uuid = p.player_uuid"),
+
+  JOURNAL_CREATE("CREATE TABLE IF NOT EXISTS nomisma_journal (journal_id VARCHAR(36) NOT NULL PRIMARY KEY, segment_id BIGINT NOT NULL)"),
+  JOURNAL_SELECT("SELECT segment_id FROM nomisma_journal WHERE journal_id=?"),
+  JOURNAL_UPDATE("UPDATE nomisma_journal SET segment_id = :segment_id WHERE journal_id = :journal_id"),
+  JOURNAL_INSERT("INSERT INTO nomisma_journal (journal_id, segment_id) VALUES(:journal_id, :segment_id)");
+
+  public static final String TOP_INDEX_PREFIX = "nomisma_top_";
+  public static final String NAME_INDEX = "player_name_lower_index";
+  public static final List<String> NAME_COLUMNS = List.of(
+    "player_name_lower VARCHAR(17) NOT NULL DEFAULT ''", "last_seen BIGINT NOT NULL DEFAULT 0"
+  );
+
+  // Generated statements are reused so identical text hits the statement caches of Jdbi and the driver
+  private static final Cache<String, String> TOP_QUERIES = Caffeine.newBuilder().maximumSize(64).build();
+  private static final Cache<String, String> TOP_BALANCE_QUERIES = Caffeine.newBuilder().maximumSize(64).build();
+  private static final Cache<Set<String>, String> UPDATE_QUERIES = Caffeine.newBuilder().maximumSize(256).build();
+  private static final Cache<Set<String>, String> INCREMENT_QUERIES = Caffeine.newBuilder().maximumSize(256).build();
 
   private final String query;
 
@@ -42,26 +77,141 @@ public enum SqlQueries {
     return query;
   }
 
-  public static String selectTop(Currency currency, int offset, int limit) {
-    StringBuilder sb = new StringBuilder("SELECT player_name, ");
-    sb.append(currency.identifier()).append(" AS balance FROM nomisma_players ORDER BY balance DESC LIMIT ");
-    if (offset > 0) {
-      sb.append(offset).append(", ");
-    }
-    sb.append(Math.max(1, Math.min(limit, 100)));
-    return sb.toString();
+  /**
+   * Leaderboard query, binds {@code offset} and {@code limit}.
+   */
+  public static String selectTop(Currency currency) {
+    return TOP_QUERIES.get(currency.identifier(), id ->
+      "SELECT player_name, " + id + " AS balance FROM nomisma_players ORDER BY " + id + " DESC LIMIT :limit OFFSET :offset"
+    );
   }
 
-  public static String updateProfile(Collection<String> currencies) {
-    StringBuilder sb = new StringBuilder("UPDATE nomisma_players SET player_name = :player_name");
-    for (String id : currencies) {
-      sb.append(", ").append(id).append(" = :").append(id);
+  public static String updateProfile(Set<String> columns) {
+    return cached(UPDATE_QUERIES, columns, false);
+  }
+
+  /**
+   * Same as {@link #updateProfile(Set)} but balance columns are incremented by the bound value.
+   */
+  public static String incrementProfile(Set<String> columns) {
+    return cached(INCREMENT_QUERIES, columns, true);
+  }
+
+  private static String cached(Cache<Set<String>, String> cache, Set<String> columns, boolean increment) {
+    // Look up with the caller's set as is, it is only copied into an immutable key on a miss
+    String query = cache.getIfPresent(columns);
+    return query == null ? cache.get(Set.copyOf(columns), c -> updateProfile(c, increment)) : query;
+  }
+
+  private static String updateProfile(Collection<String> columns, boolean increment) {
+    StringBuilder sb = new StringBuilder("UPDATE nomisma_players SET ");
+    boolean first = true;
+    for (String column : columns) {
+      if (!first) {
+        sb.append(", ");
+      }
+      sb.append(column).append(" = ");
+      if (increment && !column.startsWith("player_")) {
+        sb.append(column).append(" + ");
+      }
+      sb.append(':').append(column);
+      first = false;
     }
     sb.append(" WHERE player_uuid = :player_uuid");
     return sb.toString();
   }
 
-  public static String addColumn(Currency currency) {
-    return "ALTER TABLE nomisma_players ADD " + currency.identifier() + " DECIMAL(12,2) NOT NULL DEFAULT 0";
+  /**
+   * Leaderboard query for the normalized balance table, binds {@code offset} and {@code limit}.
+   */
+  public static String selectTopBalances(Currency currency) {
+    return TOP_BALANCE_QUERIES.get(currency.identifier(), id ->
+      "SELECT p.player_name, b.amount AS balance FROM nomisma_balances b JOIN nomisma_players p ON p.player_uuid = b.player_uuid"
+        + " WHERE b.currency = '" + id + "' ORDER BY b.amount DESC LIMIT :limit OFFSET :offset"
+    );
+  }
+
+  /**
+   * Insert a player or refresh the name of an existing one, binds {@code player_uuid} and {@code player_name}.
+   * Returns the resulting row on dialects that support it.
+   */
+  public static String upsertPlayer(StorageType type) {
+    String columns = "(player_uuid, player_name, player_name_lower, last_seen)";
+    String values = " VALUES(:player_uuid, :player_name, :player_name_lower, :last_seen)";
+    String insert = "INSERT INTO nomisma_players " + columns + values;
+    return switch (type) {
+      case MARIADB, MYSQL, HSQL -> insert + " ON DUPLICATE KEY UPDATE player_name = VALUES(player_name),"
+        + " player_name_lower = VALUES(player_name_lower), last_seen = VALUES(last_seen)";
+      case POSTGRESQL, SQLITE -> insert + " ON CONFLICT (player_uuid) DO UPDATE SET player_name = EXCLUDED.player_name,"
+        + " player_name_lower = EXCLUDED.player_name_lower, last_seen = EXCLUDED.last_seen RETURNING *";
+      default -> "SELECT * FROM FINAL TABLE (MERGE INTO nomisma_players " + columns + " KEY (player_uuid)" + values + ")";
+    };
+  }
+
+  public static String upsertBalance(StorageType type) {
+    String insert = "INSERT INTO nomisma_balances (player_uuid, currency, amount) VALUES(:player_uuid, :currency, :amount)";
+    return switch (type) {
+      case MARIADB, MYSQL, HSQL -> insert + " ON DUPLICATE KEY UPDATE amount = VALUES(amount)";
+      case POSTGRESQL, SQLITE -> insert + " ON CONFLICT (player_uuid, currency) DO UPDATE SET amount = EXCLUDED.amount";
+      default -> "MERGE INTO nomisma_balances (player_uuid, currency, amount) KEY (player_uuid, currency) VALUES(:player_uuid, :currency, :amount)";
+    };
+  }
+
+  public static String incrementBalance(StorageType type) {
+    String insert = "INSERT INTO nomisma_balances (player_uuid, currency, amount) VALUES(:player_uuid, :currency, :amount)";
+    return switch (type) {
+      case MARIADB, MYSQL, HSQL -> insert + " ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)";
+      case POSTGRESQL, SQLITE -> insert + " ON CONFLICT (player_uuid, currency) DO UPDATE SET amount = nomisma_balances.amount + EXCLUDED.amount";
+      default -> "MERGE INTO nomisma_balances t USING (SELECT CAST(:player_uuid AS UUID) player_uuid, CAST(:currency AS VARCHAR(16)) currency,"
+        + " CAST(:amount AS DECIMAL(12,2)) amount) s ON t.player_uuid = s.player_uuid AND t.currency = s.currency"
+        + " WHEN MATCHED THEN UPDATE SET amount = t.amount + s.amount"
+        + " WHEN NOT MATCHED THEN INSERT (player_uuid, currency, amount) VALUES(s.player_uuid, s.currency, s.amount)";
+    };
+  }
+
+  public static String convertColumn(String column) {
+    return "INSERT INTO nomisma_balances (player_uuid, currency, amount) SELECT player_uuid, '" + column + "', " + column
+      + " FROM nomisma_players WHERE " + column + " <> 0";
+  }
+
+  public static String currencyColumn(Currency currency) {
+    return currency.identifier() + " DECIMAL(12,2) NOT NULL DEFAULT 0";
+  }
+
+  /**
+   * Statements that add the given column definitions to the players table, combined into a single ALTER where supported.
+   */
+  public static List<String> addColumns(StorageType type, Collection<String> columns, boolean instant) {
+    String prefix = "ALTER TABLE nomisma_players ";
+    return switch (type) {
+      case MARIADB, MYSQL -> List.of(prefix + columns.stream().map(c -> "ADD COLUMN " + c)
+        .collect(Collectors.joining(", ")) + (instant ? ", ALGORITHM=INSTANT" : ""));
+      case POSTGRESQL -> List.of(prefix + columns.stream().map(c -> "ADD COLUMN " + c).collect(Collectors.joining(", ")));
+      case H2 -> List.of(prefix + "ADD COLUMN (" + String.join(", ", columns) + ")");
+      default -> columns.stream().map(c -> prefix + "ADD COLUMN " + c).toList();
+    };
+  }
+
+  public static String topIndexName(Currency currency) {
+    return TOP_INDEX_PREFIX + currency.identifier().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Descending leaderboard index for a currency column that also covers the player name.
+   */
+  public static String createTopIndex(StorageType type, Currency currency) {
+    String id = currency.identifier();
+    String prefix = "CREATE INDEX " + topIndexName(currency) + " ON nomisma_players (" + id + " DESC";
+    return switch (type) {
+      case POSTGRESQL -> prefix + ") INCLUDE (player_name)";
+      default -> prefix + ", player_name)";
+    };
+  }
+
+  public static String dropIndex(StorageType type, String index) {
+    return switch (type) {
+      case MARIADB, MYSQL -> "DROP INDEX " + index + " ON nomisma_players";
+      default -> "DROP INDEX " + index;
+    };
   }
 }
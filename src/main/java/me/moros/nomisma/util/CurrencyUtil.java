@@ -41,8 +41,19 @@ public class CurrencyUtil {
   private static final Pattern ILLEGAL_IDENTIFIER = Pattern.compile("[^_A-Za-z0-9]");
   private static final Pattern NON_ALPHABETICAL = Pattern.compile("[^A-Za-z]");
 
+  private static final long[] POWERS_OF_TEN = {
+    1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+  };
+  // Decimals with at most 15 significant digits survive a round trip through double
+  private static final long MAX_EXACT_UNITS = 1_000_000_000_000_000L;
+
   public static final MiniMessage MINI_SERIALIZER = MiniMessage.miniMessage();
 
+  /**
+   * Returned by {@link #units(double, int)} when an amount cannot be represented exactly in minor units.
+   */
+  public static final long NOT_EXACT = Long.MIN_VALUE;
+
   static {
     DecimalFormatSymbols symbols = new DecimalFormatSymbols();
     symbols.setGroupingSeparator(',');
@@ -64,6 +75,39 @@ public class CurrencyUtil {
     return BigDecimal.valueOf(amount).compareTo(value) > 0 ? Math.nextAfter(amount, Double.NEGATIVE_INFINITY) : amount;
   }
 
+  /**
+   * Same as {@link #doubleValue(BigDecimal)} for an amount in minor units, without allocating.
+   * @param units the amount in minor units
+   * @param scale the amount of decimal digits
+   * @return the largest double that does not exceed the amount
+   */
+  public static double doubleValue(long units, int scale) {
+    if (scale >= POWERS_OF_TEN.length || units >= MAX_EXACT_UNITS || units <= -MAX_EXACT_UNITS) {
+      return doubleValue(BigDecimal.valueOf(units, scale));
+    }
+    // Correctly rounded and its shortest representation is the decimal itself, so no step down is needed
+    return units / (double) POWERS_OF_TEN[scale];
+  }
+
+  /**
+   * Convert an amount to minor units if the nearest decimal with the given scale maps back to the same double.
+   * @param amount the amount to convert
+   * @param scale the amount of decimal digits
+   * @return the amount in minor units or {@link #NOT_EXACT}
+   */
+  public static long units(double amount, int scale) {
+    if (scale >= POWERS_OF_TEN.length) {
+      return NOT_EXACT;
+    }
+    double factor = POWERS_OF_TEN[scale];
+    double scaled = amount * factor;
+    if (!(Math.abs(scaled) < MAX_EXACT_UNITS)) {
+      return NOT_EXACT;
+    }
+    long units = Math.round(scaled);
+    return units / factor == amount ? units : NOT_EXACT;
+  }
+
   public static @Nullable String sanitizeInput(@Nullable String input) {
     if (input == null) {
       return null;
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Factory for executors that run blocking I/O.
+ */
+public final class IOExecutors {
+  private IOExecutors() {
+  }
+
+  /**
+   * Create a fixed pool of daemon platform threads.
+   * @param name the thread name prefix
+   * @param threads the amount of threads
+   * @return the executor
+   */
+  public static ExecutorService platform(String name, int threads) {
+    return Executors.newFixedThreadPool(threads, new IOThreadFactory(name));
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task.
+   * Looked up reflectively as virtual threads require Java 21 while the plugin targets Java 17.
+   * @return the executor or null if the runtime does not support virtual threads
+   */
+  public static @Nullable ExecutorService virtual() {
+    try {
+      return (ExecutorService) MethodHandles.publicLookup().findStatic(Executors.class,
+        "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class)).invoke();
+    } catch (Throwable ignore) {
+      return null;
+    }
+  }
+
+  private static final class IOThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private IOThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
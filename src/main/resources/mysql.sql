@@ -3,6 +3,8 @@
 CREATE TABLE IF NOT EXISTS nomisma_players (
     player_uuid     BINARY(16)              NOT NULL,
     player_name     VARCHAR(17)             NOT NULL,
+    player_name_lower VARCHAR(17)           NOT NULL DEFAULT '',
+    last_seen       BIGINT                  NOT NULL DEFAULT 0,
     PRIMARY KEY (player_uuid)
 ) DEFAULT CHARSET = utf8mb4;
-CREATE INDEX player_name_index ON nomisma_players (player_name);
+CREATE INDEX player_name_lower_index ON nomisma_players (player_name_lower, last_seen DESC);
@@ -0,0 +1,9 @@
+-- Nomisma MySQL Balance Schema
+
+CREATE TABLE IF NOT EXISTS nomisma_balances (
+    player_uuid     BINARY(16)              NOT NULL,
+    currency        VARCHAR(16)             NOT NULL,
+    amount          DECIMAL(12,2)           NOT NULL DEFAULT 0,
+    PRIMARY KEY (player_uuid, currency)
+) DEFAULT CHARSET = utf8mb4;
+CREATE INDEX balance_currency_index ON nomisma_balances (currency, amount);
@@ -0,0 +1,9 @@
+-- Nomisma PostgreSQL Balance Schema
+
+CREATE TABLE IF NOT EXISTS nomisma_balances (
+    player_uuid     UUID                    NOT NULL,
+    currency        VARCHAR(16)             NOT NULL,
+    amount          DECIMAL(12,2)           NOT NULL DEFAULT 0,
+    PRIMARY KEY (player_uuid, currency)
+);
+CREATE INDEX IF NOT EXISTS balance_currency_index ON nomisma_balances (currency, amount);
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.model;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+import me.moros.nomisma.registry.Registries;
+import me.moros.nomisma.util.CurrencyUtil;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserTest {
+  private static final Currency CURRENCY = ValidatedCurrency.EXAMPLE;
+  private static final int STEPS = 100_000;
+
+  @BeforeAll
+  static void registerCurrency() {
+    Registries.CURRENCIES.registerAndLock(List.of(CURRENCY));
+  }
+
+  @Test
+  void doublesFollowUnitUpdates() {
+    SplittableRandom random = new SplittableRandom(42);
+    User user = createUser("10.00");
+    long expected = 1000;
+    for (int i = 0; i < STEPS; i++) {
+      long amount = random.nextLong(1_000_000);
+      if (random.nextBoolean()) {
+        user.addUnits(CURRENCY, amount);
+        expected += amount;
+      } else if (user.tryWithdrawUnits(CURRENCY, amount)) {
+        expected -= amount;
+      }
+      assertEquals(expected, user.balanceUnits(CURRENCY));
+      assertConsistent(user);
+    }
+  }
+
+  @Test
+  void doublesFollowBigDecimalUpdates() {
+    SplittableRandom random = new SplittableRandom(42);
+    User user = createUser("0");
+    for (int i = 0; i < STEPS; i++) {
+      // Mix amounts that fit in units with ones that need the BigDecimal fallback
+      BigDecimal amount = BigDecimal.valueOf(random.nextLong(), random.nextInt(4));
+      switch (random.nextInt(4)) {
+        case 0 -> user.add(CURRENCY, amount.abs());
+        case 1 -> user.subtract(CURRENCY, amount.abs());
+        case 2 -> user.tryWithdraw(CURRENCY, amount.abs());
+        default -> user.set(CURRENCY, amount.abs().movePointRight(random.nextInt(20)));
+      }
+      assertConsistent(user);
+    }
+  }
+
+  @Test
+  void tryWithdrawKeepsDoublesConsistent() {
+    User user = createUser("5.00");
+    assertFalse(user.tryWithdraw(CURRENCY, new BigDecimal("5.01")).success());
+    assertConsistent(user);
+    assertTrue(user.tryWithdraw(CURRENCY, new BigDecimal("1.50")).success());
+    assertEquals(350, user.balanceUnits(CURRENCY));
+    assertConsistent(user);
+    assertFalse(user.tryWithdrawUnits(CURRENCY, 351));
+    assertTrue(user.tryWithdrawUnits(CURRENCY, 350));
+    assertEquals(0, user.balanceUnits(CURRENCY));
+    assertConsistent(user);
+  }
+
+  @Test
+  void reconcileKeepsDoublesConsistent() {
+    User user = createUser("10.00");
+    user.addUnits(CURRENCY, 500);
+    ProfileSnapshot snapshot = user.snapshot();
+    assertEquals(new BigDecimal("5.00"), snapshot.delta().get(CURRENCY));
+    assertFalse(user.isDirty());
+    // Changed after the snapshot, so the stored value must be reconciled with this delta on top
+    user.addUnits(CURRENCY, 125);
+    user.reconcile(CURRENCY, new BigDecimal("20.00"));
+    assertEquals(2125, user.balanceUnits(CURRENCY));
+    assertConsistent(user);
+    user.reconcile(CURRENCY, new BigDecimal("1e30"));
+    assertEquals(new BigDecimal("1e30").add(new BigDecimal("1.25")), user.balance(CURRENCY));
+    assertConsistent(user);
+    user.snapshot();
+    user.reconcile(CURRENCY, new BigDecimal("0.10"));
+    assertEquals(10, user.balanceUnits(CURRENCY));
+    assertConsistent(user);
+  }
+
+  @Test
+  void restoreMergesFailedSnapshot() {
+    User user = createUser("1.00");
+    user.addUnits(CURRENCY, 100);
+    ProfileSnapshot failed = user.snapshot();
+    user.addUnits(CURRENCY, 50);
+    user.restore(failed);
+    assertTrue(user.isDirty());
+    ProfileSnapshot snapshot = user.snapshot();
+    assertEquals(new BigDecimal("1.50"), snapshot.delta().get(CURRENCY));
+    assertEquals(new BigDecimal("2.50"), snapshot.balance().get(CURRENCY));
+    assertFalse(user.isDirty());
+  }
+
+  private static User createUser(String balance) {
+    return new User(UUID.randomUUID(), "Steve", Map.of(CURRENCY, new BigDecimal(balance)));
+  }
+
+  private static void assertConsistent(User user) {
+    BigDecimal balance = user.balance(CURRENCY);
+    assertEquals(CurrencyUtil.doubleValue(balance), user.balanceDouble(CURRENCY), balance::toPlainString);
+  }
+}
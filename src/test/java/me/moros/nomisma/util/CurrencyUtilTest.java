@@ -0,0 +1,114 @@
+/*
+ * Copyright 2022-2023 Moros
+ *
+ * This file is part of Nomisma.
+ *
+ * Nomisma is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nomisma is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Nomisma. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package me.moros.nomisma.util;
+
+import java.math.BigDecimal;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CurrencyUtilTest {
+  private static final long RANGE = 1_000_000;
+  private static final int SAMPLES = 1_000_000;
+
+  @Test
+  void doubleValueMatchesBigDecimalForCents() {
+    for (int scale = 0; scale <= 2; scale++) {
+      for (long units = -RANGE; units <= RANGE; units++) {
+        assertDoubleValue(units, scale);
+      }
+    }
+  }
+
+  @Test
+  void doubleValueMatchesBigDecimalForRandomAmounts() {
+    SplittableRandom random = new SplittableRandom(42);
+    for (int i = 0; i < SAMPLES; i++) {
+      int scale = random.nextInt(10);
+      long units = random.nextLong() >> random.nextInt(64);
+      assertDoubleValue(units, scale);
+    }
+    for (int scale = 0; scale <= 2; scale++) {
+      assertDoubleValue(Long.MAX_VALUE, scale);
+      assertDoubleValue(Long.MIN_VALUE, scale);
+      assertDoubleValue(999_999_999_999_999L, scale);
+      assertDoubleValue(1_000_000_000_000_000L, scale);
+    }
+  }
+
+  @Test
+  void unitsRoundTripForCents() {
+    for (int scale = 0; scale <= 2; scale++) {
+      for (long units = -RANGE; units <= RANGE; units++) {
+        assertRoundTrip(units, scale);
+      }
+    }
+  }
+
+  @Test
+  void unitsMatchesBigDecimalForRandomAmounts() {
+    SplittableRandom random = new SplittableRandom(42);
+    for (int i = 0; i < SAMPLES; i++) {
+      int scale = random.nextInt(3);
+      double amount = Double.longBitsToDouble(random.nextLong());
+      if (random.nextBoolean()) {
+        amount = (random.nextLong() >> random.nextInt(64)) / 100.0;
+      }
+      assertUnits(amount, scale);
+    }
+  }
+
+  @Test
+  void unitsRejectsInexactAmounts() {
+    assertEquals(CurrencyUtil.NOT_EXACT, CurrencyUtil.units(0.001, 2));
+    assertEquals(CurrencyUtil.NOT_EXACT, CurrencyUtil.units(0.5, 0));
+    assertEquals(CurrencyUtil.NOT_EXACT, CurrencyUtil.units(Double.NaN, 2));
+    assertEquals(CurrencyUtil.NOT_EXACT, CurrencyUtil.units(Double.POSITIVE_INFINITY, 2));
+    assertEquals(CurrencyUtil.NOT_EXACT, CurrencyUtil.units(1e300, 2));
+    assertEquals(10, CurrencyUtil.units(0.1, 2));
+    assertEquals(-12345, CurrencyUtil.units(-123.45, 2));
+  }
+
+  private static void assertDoubleValue(long units, int scale) {
+    double expected = CurrencyUtil.doubleValue(BigDecimal.valueOf(units, scale));
+    assertEquals(expected, CurrencyUtil.doubleValue(units, scale), () -> units + " at scale " + scale);
+  }
+
+  private static void assertRoundTrip(long units, int scale) {
+    double amount = CurrencyUtil.doubleValue(units, scale);
+    assertEquals(units, CurrencyUtil.units(amount, scale), () -> amount + " at scale " + scale);
+  }
+
+  // Exact only when the shortest representation of the double has at most the given scale
+  private static void assertUnits(double amount, int scale) {
+    long expected = CurrencyUtil.NOT_EXACT;
+    if (Double.isFinite(amount)) {
+      BigDecimal scaled = BigDecimal.valueOf(amount).movePointRight(scale);
+      if (scaled.signum() == 0 || scaled.stripTrailingZeros().scale() <= 0) {
+        if (scaled.abs().compareTo(BigDecimal.valueOf(1_000_000_000_000_000L)) < 0) {
+          expected = scaled.longValueExact();
+        }
+      }
+    }
+    assertEquals(expected, CurrencyUtil.units(amount, scale), () -> amount + " at scale " + scale);
+  }
+}